@@ -0,0 +1,60 @@
+package com.github.sardine;
+
+/**
+ * Identity of a resource as returned by the server in response to a <code>PUT</code>, so the
+ * uploaded resource does not have to be looked up with a <code>PROPFIND</code>.
+ * <p>
+ * Nextcloud and ownCloud return the <code>OC-ETag</code> and <code>OC-FileId</code> headers in addition
+ * to the standard <code>ETag</code>, any of the values is <code>null</code> when the server did not
+ * return it.
+ */
+public class DavPutResult
+{
+	private final int statusCode;
+
+	private final String etag;
+
+	private final String ocEtag;
+
+	private final String fileId;
+
+	public DavPutResult(int statusCode, String etag, String ocEtag, String fileId)
+	{
+		this.statusCode = statusCode;
+		this.etag = etag;
+		this.ocEtag = ocEtag;
+		this.fileId = fileId;
+	}
+
+	/**
+	 * @return 201 when the resource was created, 200 or 204 when it was replaced
+	 */
+	public int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	/**
+	 * @return <code>ETag</code> of the uploaded resource, may be a weak ETag
+	 */
+	public String getEtag()
+	{
+		return etag;
+	}
+
+	/**
+	 * @return <code>OC-ETag</code> of the uploaded resource
+	 */
+	public String getOcEtag()
+	{
+		return ocEtag;
+	}
+
+	/**
+	 * @return <code>OC-FileId</code> of the uploaded resource
+	 */
+	public String getFileId()
+	{
+		return fileId;
+	}
+}
@@ -1,5 +1,12 @@
 package com.github.sardine.ant;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.ProjectComponent;
 
@@ -66,4 +73,33 @@ public abstract class Command extends ProjectComponent
 	protected final Sardine getSardine() {
 		return sardineTask.getSardine();
 	}
+
+	/**
+	 * Runs tasks in parallel and waits for all of them. Every failure is logged, the first one is thrown
+	 * after all tasks completed.
+	 *
+	 * @param executor runs the tasks
+	 * @param tasks to run
+	 * @return the results in the order of the tasks
+	 * @throws Exception the first failure of a task
+	 */
+	protected final <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws Exception {
+		List<T> results = new ArrayList<T>();
+		Exception failure = null;
+		for (Future<T> future : executor.invokeAll(tasks)) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				results.add(null);
+				log(e.getCause().getMessage(), Project.MSG_ERR);
+				if (failure == null) {
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
 }
@@ -9,6 +9,7 @@ import com.github.sardine.ant.command.Exists;
 import com.github.sardine.ant.command.RecursiveGet;
 import com.github.sardine.ant.command.Move;
 import com.github.sardine.ant.command.Put;
+import com.github.sardine.ant.command.Sync;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 import java.util.ArrayList;
@@ -83,6 +84,11 @@ public class SardineTask extends Task
 		addCommand(get);
 	}
 
+	/** Add a sync command. */
+	public void addSync(Sync sync) {
+		addCommand(sync);
+	}
+
 	/** Internal addCommand implementation. */
 	private void addCommand(Command command) {
 		command.setTask(this);
@@ -1,26 +1,47 @@
 package com.github.sardine.ant.command;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.FileEntity;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.FilterChain;
 import org.apache.tools.ant.types.FilterSet;
 import org.apache.tools.ant.types.FilterSetCollection;
 
+import com.github.sardine.DavPutResult;
+import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
 import com.github.sardine.ant.Command;
+import com.github.sardine.impl.SardineImpl;
 
 /**
  * A nice ant wrapper around sardine.put().
+ * <p>
+ * File sets are put by the configured number of threads. The remote tree is listed once up front so only
+ * missing directories are created, and with skipUnchanged files that did not change are not put again.
  *
  * @author Jon Stevens
  */
@@ -48,6 +69,15 @@ public class Put extends Command {
 	private String outputEncoding = null;
 	private boolean inMemoryFiltering = true;
 
+	/** Number of files put at the same time. */
+	private int threads = 1;
+
+	/** Skip files that did not change since they were put. */
+	private boolean skipUnchanged = false;
+
+	/** Optional file recording the etag of every file put, for skipUnchanged. */
+	private File etagFile;
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -62,33 +92,185 @@ public class Put extends Command {
 			String urlString = dest.toString();
 			// URL has to be a directory when working with file sets
 			urlString = urlString.endsWith("/") ? urlString : (urlString + '/');
-			URL baseUrl = new URL(urlString);
-			// to prevent unnecessary dir checks
-			Set<URL> alreadyCreated = new HashSet<URL>();
-			File currentParentDir = null;
-			for (Iterator<FileSet> setIterator = srcFileSets.iterator(); setIterator.hasNext();) {
-				FileSet fileSet = setIterator.next();
+			final URL baseUrl = new URL(urlString);
+			// relative path of every file to put
+			Map<String, File> sources = new LinkedHashMap<String, File>();
+			for (FileSet fileSet : srcFileSets) {
 				File dir = fileSet.getDir(getProject());
 				log("putting from " + dir + " to " + baseUrl);
 				String[] files = fileSet.getDirectoryScanner(getProject()).getIncludedFiles();
 				for (int idx = 0; idx < files.length; idx++) {
 					String fileName = files[idx].replace('\\', '/'); // no Windows backslashes in the URL
-					File parentDir = new File(fileName).getParentFile();
-					if (parentDir == null || !parentDir.equals(currentParentDir)) {
-						checkOrCreateDir(baseUrl, parentDir, alreadyCreated);
-						currentParentDir = parentDir;
-					}
-					File srcFile = new File(dir, fileName);
-					URL destUrl = new URL(baseUrl, fileName);
-					boolean expectContinue = setIterator.hasNext() || idx + 1 < files.length;
-					process(srcFile, destUrl, expectContinue);
-					fileCounter++;
+					sources.put(fileName, new File(dir, fileName));
 				}
 			}
+
+			Map<String, DavResource> remote = listRemote(baseUrl);
+			createDirectories(baseUrl, sources.keySet(), remote);
+
+			final Properties etags = loadEtags();
+			List<Callable<Void>> uploads = new ArrayList<Callable<Void>>();
+			int remaining = sources.size();
+			long skipped = 0;
+			for (Map.Entry<String, File> source : sources.entrySet()) {
+				final String fileName = source.getKey();
+				final File file = source.getValue();
+				final boolean expectContinue = --remaining > 0;
+				if (skipUnchanged && isUnchanged(fileName, file, remote, etags)) {
+					log("skipping unchanged " + file, Project.MSG_VERBOSE);
+					skipped++;
+					continue;
+				}
+				uploads.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						String etag = process(file, new URL(baseUrl, fileName), expectContinue);
+						if (etags != null) {
+							if (etag != null) {
+								etags.setProperty(fileName, file.length() + " " + file.lastModified() + " " + etag);
+							} else {
+								etags.remove(fileName);
+							}
+						}
+						return null;
+					}
+				});
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				invokeAll(executor, uploads);
+			} finally {
+				executor.shutdownNow();
+				saveEtags(etags);
+			}
+			fileCounter = uploads.size();
+			if (skipped > 0) {
+				log("skipped " + skipped + " unchanged file(s)");
+			}
 		}
 		log("putting of " + fileCounter + " file(s) completed");
 	}
 
+	/**
+	 * Lists the remote tree below the base URL with a single <code>PROPFIND</code>.
+	 *
+	 * @return the remote resources by path relative to the base URL, <code>null</code> if the server refused
+	 *         the listing
+	 */
+	private Map<String, DavResource> listRemote(URL baseUrl) throws IOException {
+		String basePath;
+		try {
+			basePath = baseUrl.toURI().getPath();
+		} catch (URISyntaxException e) {
+			basePath = baseUrl.getPath();
+		}
+		List<DavResource> resources;
+		try {
+			resources = getSardine().list(baseUrl.toString(), -1);
+		} catch (HttpResponseException e) {
+			log("listing " + baseUrl + " failed with " + e.getStatusCode() + ", checking directories one by one",
+					Project.MSG_VERBOSE);
+			return null;
+		}
+		Map<String, DavResource> remote = new HashMap<String, DavResource>();
+		for (DavResource resource : resources) {
+			String path = resource.getPath();
+			if (path.startsWith(basePath)) {
+				String relativePath = path.substring(basePath.length());
+				remote.put(relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1) : relativePath,
+						resource);
+			}
+		}
+		return remote;
+	}
+
+	/**
+	 * Creates the directories of the files that do not exist remotely yet, parents first.
+	 *
+	 * @param remote the remote tree, <code>null</code> to check every directory with {@link Sardine#exists(String)}
+	 */
+	private void createDirectories(URL baseUrl, Set<String> fileNames, Map<String, DavResource> remote) throws IOException {
+		if (remote == null) {
+			// to prevent unnecessary dir checks
+			Set<URL> alreadyCreated = new HashSet<URL>();
+			for (String fileName : fileNames) {
+				checkOrCreateDir(baseUrl, new File(fileName).getParentFile(), alreadyCreated);
+			}
+			return;
+		}
+		// a parent is a prefix of its children and thereby sorted before them
+		SortedSet<String> dirs = new TreeSet<String>();
+		for (String fileName : fileNames) {
+			for (int slash = fileName.lastIndexOf('/'); slash > 0; slash = fileName.lastIndexOf('/', slash - 1)) {
+				dirs.add(fileName.substring(0, slash));
+			}
+		}
+		for (String dir : dirs) {
+			if (!remote.containsKey(dir)) {
+				URL dirUrl = new URL(baseUrl, dir);
+				log("creating directory " + dirUrl, Project.MSG_VERBOSE);
+				getSardine().createDirectory(dirUrl.toString());
+			}
+		}
+	}
+
+	/**
+	 * A file is unchanged when the remote file has the same size and, with an etag file, the local file and
+	 * the remote etag did not change since the last put, or otherwise the remote file is not older than the
+	 * local file.
+	 */
+	private boolean isUnchanged(String fileName, File file, Map<String, DavResource> remote, Properties etags) {
+		DavResource resource = remote == null ? null : remote.get(fileName);
+		if (resource == null || resource.getContentLength() == null || resource.getContentLength() != file.length()) {
+			return false;
+		}
+		if (etags != null) {
+			String recorded = etags.getProperty(fileName);
+			String[] parts = recorded == null ? new String[0] : recorded.split(" ", 3);
+			return parts.length == 3 && parts[0].equals(Long.toString(file.length()))
+					&& parts[1].equals(Long.toString(file.lastModified()))
+					&& normalizeEtag(parts[2]).equals(normalizeEtag(resource.getEtag()));
+		}
+		return resource.getModified() != null && resource.getModified().getTime() / 1000 >= file.lastModified() / 1000;
+	}
+
+	private static String normalizeEtag(String etag) {
+		if (etag == null) {
+			return "";
+		}
+		String normalized = etag.startsWith("W/") ? etag.substring(2) : etag;
+		return normalized.replace("\"", "");
+	}
+
+	private Properties loadEtags() throws IOException {
+		if (etagFile == null) {
+			return null;
+		}
+		Properties etags = new Properties();
+		if (etagFile.isFile()) {
+			InputStream in = new FileInputStream(etagFile);
+			try {
+				etags.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return etags;
+	}
+
+	private void saveEtags(Properties etags) throws IOException {
+		if (etags == null) {
+			return;
+		}
+		OutputStream out = new FileOutputStream(etagFile);
+		try {
+			etags.store(out, "size, modification time and etag of files put to " + dest);
+		} finally {
+			out.close();
+		}
+	}
+
 	/**
 	 * Check and if necessary create the parent directory for files to put. Thus it is possible to put whole
 	 * directory trees, even if the sub-directories of the tree do not yet exist.
@@ -117,10 +299,19 @@ public class Put extends Command {
 
 	/**
 	 * Process an individual file with sardine.put()
+	 *
+	 * @return the etag of the uploaded file, <code>null</code> if unknown
 	 */
-	private void process(File file, URL dest, boolean expectContinue) throws Exception {
+	private String process(File file, URL dest, boolean expectContinue) throws Exception {
 		log("putting " + file + " to " + dest + " with expectContinue=" + expectContinue, Project.MSG_VERBOSE);
-		getSardine().put(dest.toString(), file, contentType, expectContinue);
+		Sardine sardine = getSardine();
+		if (sardine instanceof SardineImpl) {
+			DavPutResult result = ((SardineImpl) sardine).put(dest.toString(), new FileEntity(file), contentType,
+					expectContinue, null, false);
+			return result.getEtag();
+		}
+		sardine.put(dest.toString(), file, contentType, expectContinue);
+		return null;
 	}
 
 	/**
@@ -137,6 +328,9 @@ public class Put extends Command {
 
 		if (srcFile != null && !srcFile.isFile())
 			throw new Exception(srcFile + " is not a file");
+
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
 	}
 
 	/** Set destination URL. */
@@ -144,6 +338,21 @@ public class Put extends Command {
 		this.urlString = urlString;
 	}
 
+	/** Set the number of files put at the same time. */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/** Skip files with the size of the remote file and an unchanged etag, or not newer than the remote file. */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/** Set the file recording the etags of the files put, used by skipUnchanged. */
+	public void setEtagFile(File etagFile) {
+		this.etagFile = etagFile;
+	}
+
 	/** Set source file. */
 	public void setFile(File file) {
 		this.srcFile = file;
@@ -1,18 +1,44 @@
 package com.github.sardine.ant.command;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.tools.ant.Project;
 
 import com.github.sardine.DavResource;
 import com.github.sardine.ant.Command;
+import com.github.sardine.impl.io.ContentLengthInputStream;
 
 /**
  * A nice ant wrapper around sardine.list() and sardine.get().
+ * <p>
+ * Files are downloaded by the configured number of threads. Local files with the size and modification time
+ * of the remote file are skipped, so a repeated run only downloads what changed. Downloads are written to a
+ * <code>.part</code> file that is renamed when complete, an interrupted download is resumed with a
+ * <code>Range</code> request on the next run. The <code>.part</code> file gets the modification time of the
+ * remote file whenever a download stops, it is only resumed when the remote file still has that modification
+ * time and with an <code>If-Range</code> validator, otherwise it is downloaded again. When the server refuses
+ * <code>Depth: infinity</code> the tree is listed folder by folder.
  * 
  * @author andreafonti
  */
@@ -36,6 +62,11 @@ public class RecursiveGet extends Command {
 	 */
 	boolean overwriteFiles = false;
 
+	/**
+	 * Number of files downloaded at the same time
+	 */
+	int threads = 1;
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -52,6 +83,9 @@ public class RecursiveGet extends Command {
 		if (localDirectory == null) {
 			sb.append("[localDirectory] must not be null\n");
 		}
+		if (threads < 1) {
+			sb.append("[threads] must be at least 1\n");
+		}
 
 		if (sb.length() > 0) {
 			throw new IllegalArgumentException(sb.substring(0, sb.length() - 1));
@@ -69,34 +103,149 @@ public class RecursiveGet extends Command {
 		// duplicated
 		URI remoteDirectoryUrl = new URI(serverUrl + '/').resolve(remoteDirectory);
 
-		String remoteDirectoryPath = remoteDirectoryUrl.getPath();
+		final String remoteDirectoryPath = remoteDirectoryUrl.getPath();
 
-		List<DavResource> resource = getSardine().list(remoteDirectoryUrl.toString(), -1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<DavResource> resources = list(executor, remoteDirectoryUrl.toString());
 
-		for (DavResource davResource : resource) {
-			if (!davResource.isDirectory()) {
-				String filePathRelativeToRemoteDirectory = davResource.getPath().replace(remoteDirectoryPath, "");
-				Path localFilePath = Paths.get(localDirectory, filePathRelativeToRemoteDirectory);
+			List<Callable<Void>> downloads = new ArrayList<Callable<Void>>();
+			for (final DavResource davResource : resources) {
+				if (!davResource.isDirectory()) {
+					downloads.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							download(davResource, davResource.getPath().replace(remoteDirectoryPath, ""));
+							return null;
+						}
+					});
+				}
+			}
+			invokeAll(executor, downloads);
+		} finally {
+			executor.shutdownNow();
+		}
+		log("downloaded files to " + localDirectory);
+	}
 
-				Files.createDirectories(localFilePath.getParent());
+	/**
+	 * Lists the remote tree with <code>Depth: infinity</code>, or folder by folder in parallel when the server
+	 * refuses that.
+	 */
+	protected List<DavResource> list(ExecutorService executor, String url) throws Exception {
+		try {
+			return getSardine().list(url, -1);
+		} catch (HttpResponseException e) {
+			if (e.getStatusCode() != HttpStatus.SC_FORBIDDEN && e.getStatusCode() != HttpStatus.SC_BAD_REQUEST
+					&& e.getStatusCode() != HttpStatus.SC_NOT_IMPLEMENTED) {
+				throw e;
+			}
+			log("Depth: infinity refused (" + e.getStatusCode() + "), listing folder by folder", Project.MSG_VERBOSE);
+		}
+		List<DavResource> resources = new ArrayList<DavResource>();
+		List<String> folders = Collections.singletonList(url);
+		while (!folders.isEmpty()) {
+			List<Callable<List<DavResource>>> listings = new ArrayList<Callable<List<DavResource>>>();
+			for (final String folder : folders) {
+				listings.add(new Callable<List<DavResource>>() {
+					@Override
+					public List<DavResource> call() throws Exception {
+						return getSardine().list(folder, 1);
+					}
+				});
+			}
+			List<List<DavResource>> results = invokeAll(executor, listings);
+			List<String> subfolders = new ArrayList<String>();
+			for (int i = 0; i < folders.size(); i++) {
+				List<DavResource> listing = results.get(i);
+				URI folderUrl = new URI(folders.get(i));
+				for (DavResource resource : listing) {
+					// the first entry is the listed folder itself
+					if (resource.isDirectory() && !trimSlash(folderUrl.getPath()).equals(trimSlash(resource.getPath()))) {
+						subfolders.add(folderUrl.resolve(resource.getHref()).toString());
+					}
+				}
+				resources.addAll(listing);
+			}
+			folders = subfolders;
+		}
+		return resources;
+	}
+
+	private static String trimSlash(String path) {
+		return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+
+	protected void download(DavResource davResource, String filePathRelativeToRemoteDirectory) throws Exception {
+		Path localFilePath = Paths.get(localDirectory, filePathRelativeToRemoteDirectory);
+		long remoteLength = davResource.getContentLength() == null ? -1 : davResource.getContentLength();
+		FileTime remoteModified = davResource.getModified() == null ? null : FileTime.fromMillis(davResource.getModified().getTime());
+
+		if (Files.exists(localFilePath)) {
+			if (remoteModified != null && Files.size(localFilePath) == remoteLength
+					&& Files.getLastModifiedTime(localFilePath).toMillis() / 1000 == remoteModified.toMillis() / 1000) {
+				log("skipping unchanged " + filePathRelativeToRemoteDirectory, Project.MSG_VERBOSE);
+				return;
+			}
+			if (!overwriteFiles) {
+				throw new FileAlreadyExistsException(localFilePath.toString());
+			}
+		}
 
-				log("downloading " + filePathRelativeToRemoteDirectory + " to " + localFilePath);
+		Files.createDirectories(localFilePath.getParent());
+		Path partFilePath = localFilePath.resolveSibling(localFilePath.getFileName() + ".part");
+		// a partial download without a matching modification time is of another version or was killed mid-write
+		long offset = 0;
+		if (remoteModified != null && Files.exists(partFilePath)
+				&& Files.getLastModifiedTime(partFilePath).toMillis() / 1000 == remoteModified.toMillis() / 1000) {
+			offset = Files.size(partFilePath);
+		}
+		if (remoteLength >= 0 && offset > remoteLength) {
+			offset = 0;
+		}
 
-				String remoteFileUrl = new URI(serverUrl + '/').resolve(davResource.getPath()).toString();
-				InputStream ioStream = getSardine().get(remoteFileUrl);
+		String remoteFileUrl = new URI(serverUrl + '/').resolve(davResource.getHref()).toString();
+		Map<String, String> headers = new HashMap<String, String>();
+		if (offset > 0 && offset < remoteLength) {
+			headers.put("Range", "bytes=" + offset + "-");
+			// the server sends the whole file instead when it was changed since it was listed, a weak etag never matches
+			String etag = davResource.getEtag();
+			headers.put("If-Range", etag != null && !etag.startsWith("W/")
+					? etag : DateUtils.formatDate(davResource.getModified()));
+		}
+
+		if (offset != remoteLength) {
+			log("downloading " + filePathRelativeToRemoteDirectory + " to " + localFilePath
+					+ (headers.containsKey("Range") ? " from byte " + offset : ""));
+			InputStream ioStream = getSardine().get(remoteFileUrl, headers);
+			try {
+				boolean partial = ioStream instanceof ContentLengthInputStream && ((ContentLengthInputStream) ioStream)
+						.getResponse().getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT;
+				OutputStream out = partial
+						? Files.newOutputStream(partFilePath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+						: Files.newOutputStream(partFilePath);
 				try {
-					if (overwriteFiles) {
-						Files.copy(ioStream, localFilePath, StandardCopyOption.REPLACE_EXISTING);
-					} else {
-						Files.copy(ioStream, localFilePath);
+					byte[] buffer = new byte[64 * 1024];
+					int read;
+					while ((read = ioStream.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
 					}
-
 				} finally {
-					ioStream.close();
+					out.close();
+					if (remoteModified != null) {
+						Files.setLastModifiedTime(partFilePath, remoteModified);
+					}
 				}
+			} finally {
+				ioStream.close();
 			}
 		}
-		log("downloaded files to " + localDirectory);
+
+		if (remoteLength >= 0 && Files.size(partFilePath) != remoteLength) {
+			throw new IOException("Incomplete download of " + filePathRelativeToRemoteDirectory + ", "
+					+ Files.size(partFilePath) + " of " + remoteLength + " bytes");
+		}
+		Files.move(partFilePath, localFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
 
 	public void setServerUrl(String serverUrl) {
@@ -115,4 +264,8 @@ public class RecursiveGet extends Command {
 		this.overwriteFiles = overwriteFiles;
 	}
 
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 }
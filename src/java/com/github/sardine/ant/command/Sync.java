@@ -0,0 +1,242 @@
+package com.github.sardine.ant.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.tools.ant.Project;
+
+import com.github.sardine.DavResource;
+import com.github.sardine.report.SyncCollectionReport;
+
+/**
+ * Mirrors a remote directory into a local directory using the <code>sync-collection</code> report (RFC 6578).
+ * <p>
+ * The sync token of the last run is kept in a state file, so a run only fetches the resources that changed
+ * since then and removes local files that were deleted remotely. The first run, a run after the server
+ * invalidated the token and a run against a server without <code>sync-collection</code> do a full crawl,
+ * downloading only files that differ in size or modification time. Only files written by this command are
+ * ever deleted locally.
+ */
+public class Sync extends RecursiveGet {
+
+	private static final String SYNC_TOKEN = "syncToken";
+
+	private static final String FILE_PREFIX = "file:";
+
+	private static final Set<QName> PROPERTIES = new LinkedHashSet<QName>();
+
+	static {
+		PROPERTIES.add(new QName("DAV:", "getcontentlength", "d"));
+		PROPERTIES.add(new QName("DAV:", "getlastmodified", "d"));
+		PROPERTIES.add(new QName("DAV:", "getcontenttype", "d"));
+		PROPERTIES.add(new QName("DAV:", "getetag", "d"));
+		PROPERTIES.add(new QName("DAV:", "resourcetype", "d"));
+	}
+
+	/**
+	 * State file path, defaults to .sardine-sync in the local directory
+	 */
+	String stateFile;
+
+	/**
+	 * true if local files deleted remotely will be deleted; otherwise, false.
+	 */
+	boolean delete = true;
+
+	public Sync() {
+		// a mirror always replaces local files
+		overwriteFiles = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void execute() throws Exception {
+		URI remoteDirectoryUrl = new URI(serverUrl + '/').resolve(remoteDirectory);
+		final String remoteDirectoryPath = remoteDirectoryUrl.getPath();
+		Path statePath = stateFile != null ? Paths.get(stateFile) : Paths.get(localDirectory, ".sardine-sync");
+		final Properties state = loadState(statePath);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			String syncToken = state.getProperty(SYNC_TOKEN);
+			SyncCollectionReport.Result result = syncCollection(remoteDirectoryUrl.toString(), syncToken);
+			if (result == null && syncToken != null) {
+				log("sync token no longer valid, doing a full crawl");
+				syncToken = null;
+				result = syncCollection(remoteDirectoryUrl.toString(), null);
+			}
+			List<DavResource> resources;
+			if (result != null) {
+				resources = result.getResources();
+			} else {
+				log("sync-collection not supported, doing a full crawl", Project.MSG_VERBOSE);
+				resources = list(executor, remoteDirectoryUrl.toString());
+			}
+
+			List<Callable<Void>> downloads = new ArrayList<Callable<Void>>();
+			Set<String> present = new HashSet<String>();
+			List<String> deleted = new ArrayList<String>();
+			for (final DavResource davResource : resources) {
+				final String relativePath = trimSlash(davResource.getPath().replace(remoteDirectoryPath, ""));
+				if (davResource.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+					deleted.add(relativePath);
+				} else if (!davResource.isDirectory()) {
+					present.add(relativePath);
+					downloads.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							download(davResource, relativePath);
+							state.setProperty(FILE_PREFIX + relativePath, davResource.getEtag() == null ? "" : davResource.getEtag());
+							return null;
+						}
+					});
+				}
+			}
+			log("syncing " + downloads.size() + " changed file(s) to " + localDirectory);
+			invokeAll(executor, downloads);
+
+			if (syncToken == null) {
+				// full crawl, everything recorded but not listed was deleted
+				for (String name : state.stringPropertyNames()) {
+					if (name.startsWith(FILE_PREFIX) && !present.contains(name.substring(FILE_PREFIX.length()))) {
+						deleted.add(name.substring(FILE_PREFIX.length()));
+					}
+				}
+			}
+			if (delete) {
+				for (String relativePath : deleted) {
+					deleteLocal(state, relativePath);
+				}
+			}
+
+			if (result != null && result.getSyncToken() != null) {
+				state.setProperty(SYNC_TOKEN, result.getSyncToken());
+			} else {
+				state.remove(SYNC_TOKEN);
+			}
+		} finally {
+			executor.shutdownNow();
+			saveState(statePath, state);
+		}
+		log("synced " + remoteDirectoryUrl + " to " + localDirectory);
+	}
+
+	/**
+	 * @return the changes since the token, or all members without token; <code>null</code> if the server
+	 *         refused the token or does not support sync-collection
+	 */
+	private SyncCollectionReport.Result syncCollection(String url, String syncToken) throws IOException {
+		try {
+			return getSardine().report(url, 0,
+					new SyncCollectionReport(syncToken, SyncCollectionReport.SyncLevel.LEVEL_INFINITY, PROPERTIES, null));
+		} catch (HttpResponseException e) {
+			// 403 or 409 with DAV:valid-sync-token for an expired token, 400, 403, 405 or 501 without support
+			int status = e.getStatusCode();
+			if (status == HttpStatus.SC_FORBIDDEN || status == HttpStatus.SC_CONFLICT || status == HttpStatus.SC_BAD_REQUEST
+					|| status == HttpStatus.SC_METHOD_NOT_ALLOWED || status == HttpStatus.SC_NOT_IMPLEMENTED
+					|| status == HttpStatus.SC_PRECONDITION_FAILED) {
+				log("sync-collection refused with " + status, Project.MSG_VERBOSE);
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes a local file, or the files below a local directory, that were written by this command.
+	 */
+	private void deleteLocal(Properties state, String relativePath) throws IOException {
+		for (String name : state.stringPropertyNames()) {
+			if (!name.startsWith(FILE_PREFIX)) {
+				continue;
+			}
+			String file = name.substring(FILE_PREFIX.length());
+			if (file.equals(relativePath) || file.startsWith(relativePath + "/")) {
+				log("deleting " + file, Project.MSG_VERBOSE);
+				Path localFilePath = Paths.get(localDirectory, file);
+				Files.deleteIfExists(localFilePath);
+				state.remove(name);
+				deleteEmptyParents(localFilePath.getParent());
+			}
+		}
+	}
+
+	private void deleteEmptyParents(Path dir) throws IOException {
+		Path root = Paths.get(localDirectory);
+		while (dir != null && dir.startsWith(root) && !dir.equals(root) && isEmpty(dir)) {
+			Files.delete(dir);
+			dir = dir.getParent();
+		}
+	}
+
+	private static boolean isEmpty(Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return false;
+		}
+		DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+		try {
+			return !entries.iterator().hasNext();
+		} finally {
+			entries.close();
+		}
+	}
+
+	private static String trimSlash(String path) {
+		return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+
+	private static Properties loadState(Path statePath) throws IOException {
+		Properties state = new Properties();
+		if (Files.isRegularFile(statePath)) {
+			InputStream in = Files.newInputStream(statePath);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return state;
+	}
+
+	private void saveState(Path statePath, Properties state) throws IOException {
+		if (statePath.getParent() != null) {
+			Files.createDirectories(statePath.getParent());
+		}
+		OutputStream out = Files.newOutputStream(statePath);
+		try {
+			state.store(out, "sync state of " + serverUrl + " " + remoteDirectory);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void setStateFile(String stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+}
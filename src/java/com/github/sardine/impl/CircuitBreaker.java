@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+/**
+ * Fails fast while a host is considered unhealthy.
+ * <p>
+ * The breaker keeps the outcome of the last calls in a sliding window. It opens when the share of failed calls
+ * or of calls slower than the slow call threshold reaches the configured rate. While open every call is
+ * rejected with a {@link CircuitBreakerOpenException}. After the open duration a few probe calls are let through
+ * (half-open); the breaker closes when all of them succeed and opens again as soon as one fails.
+ *
+ * @see CircuitBreakerRegistry
+ */
+public class CircuitBreaker
+{
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final byte SUCCESS = 0;
+	private static final byte FAILURE = 1;
+	private static final byte SLOW = 2;
+
+	private final String host;
+
+	private final CircuitBreakerRegistry config;
+
+	private final byte[] outcomes;
+
+	private int outcomeCount;
+
+	private int nextOutcome;
+
+	private State state = State.CLOSED;
+
+	private long openedAt;
+
+	private int probesInFlight;
+
+	private int probeSuccesses;
+
+	private long rejectedCalls;
+
+	CircuitBreaker(String host, CircuitBreakerRegistry config)
+	{
+		this.host = host;
+		this.config = config;
+		this.outcomes = new byte[config.getWindowSize()];
+	}
+
+	/**
+	 * Must be called before every call to the host.
+	 *
+	 * @throws CircuitBreakerOpenException when the call is not permitted
+	 */
+	public synchronized void acquirePermission() throws CircuitBreakerOpenException
+	{
+		if (state == State.OPEN)
+		{
+			long remaining = openedAt + config.getOpenDuration() - System.currentTimeMillis();
+			if (remaining > 0)
+			{
+				rejectedCalls++;
+				throw new CircuitBreakerOpenException(host, remaining);
+			}
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+			probeSuccesses = 0;
+		}
+		if (state == State.HALF_OPEN)
+		{
+			if (probesInFlight + probeSuccesses >= config.getHalfOpenProbes())
+			{
+				rejectedCalls++;
+				throw new CircuitBreakerOpenException(host, config.getOpenDuration());
+			}
+			probesInFlight++;
+		}
+	}
+
+	/**
+	 * Records a completed call.
+	 *
+	 * @param success  <code>false</code> if the call failed because of the host, e.g. I/O error or 5xx status
+	 * @param duration Duration of the call in milliseconds
+	 */
+	public synchronized void onResult(boolean success, long duration)
+	{
+		boolean slow = success && duration >= config.getSlowCallDuration();
+		if (state == State.HALF_OPEN)
+		{
+			probesInFlight = Math.max(0, probesInFlight - 1);
+			if (!success || slow)
+			{
+				open();
+			}
+			else if (++probeSuccesses >= config.getHalfOpenProbes())
+			{
+				close();
+			}
+			return;
+		}
+		if (state == State.OPEN)
+		{
+			return;
+		}
+		outcomes[nextOutcome] = success ? (slow ? SLOW : SUCCESS) : FAILURE;
+		nextOutcome = (nextOutcome + 1) % outcomes.length;
+		if (outcomeCount < outcomes.length)
+		{
+			outcomeCount++;
+		}
+		if (outcomeCount >= config.getMinimumCalls()
+				&& (getRate(FAILURE) >= config.getFailureRate() || getRate(SLOW) >= config.getFailureRate()))
+		{
+			open();
+		}
+	}
+
+	/**
+	 * Releases a permission without recording an outcome, e.g. when the call was cancelled locally.
+	 */
+	public synchronized void onIgnored()
+	{
+		if (state == State.HALF_OPEN)
+		{
+			probesInFlight = Math.max(0, probesInFlight - 1);
+		}
+	}
+
+	private void open()
+	{
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		CircuitBreakerRegistry.log.warning(String.format("Circuit breaker for %s opened", host));
+	}
+
+	private void close()
+	{
+		state = State.CLOSED;
+		outcomeCount = 0;
+		nextOutcome = 0;
+		CircuitBreakerRegistry.log.info(String.format("Circuit breaker for %s closed", host));
+	}
+
+	private int getRate(byte outcome)
+	{
+		int count = 0;
+		for (int i = 0; i < outcomeCount; i++)
+		{
+			if (outcomes[i] == outcome)
+			{
+				count++;
+			}
+		}
+		return count * 100 / outcomeCount;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public synchronized State getState()
+	{
+		if (state == State.OPEN && System.currentTimeMillis() >= openedAt + config.getOpenDuration())
+		{
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * @return Percentage of failed calls in the current window
+	 */
+	public synchronized int getFailureRate()
+	{
+		return outcomeCount == 0 ? 0 : getRate(FAILURE);
+	}
+
+	/**
+	 * @return Percentage of slow calls in the current window
+	 */
+	public synchronized int getSlowCallRate()
+	{
+		return outcomeCount == 0 ? 0 : getRate(SLOW);
+	}
+
+	/**
+	 * @return Number of calls rejected since the breaker was created
+	 */
+	public synchronized long getRejectedCalls()
+	{
+		return rejectedCalls;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of executing a request while the {@link CircuitBreaker} of its host is open.
+ */
+public class CircuitBreakerOpenException extends IOException
+{
+	private static final long serialVersionUID = 4306425164823317419L;
+
+	private final String host;
+
+	private final long retryAfter;
+
+	/**
+	 * @param host       Host the request was meant for
+	 * @param retryAfter Milliseconds until the breaker lets probe requests through
+	 */
+	public CircuitBreakerOpenException(String host, long retryAfter)
+	{
+		super(String.format("Circuit breaker for %s is open", host));
+		this.host = host;
+		this.retryAfter = retryAfter;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	/**
+	 * @return Milliseconds until the breaker lets probe requests through
+	 */
+	public long getRetryAfter()
+	{
+		return retryAfter;
+	}
+}
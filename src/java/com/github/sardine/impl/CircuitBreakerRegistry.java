@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Holds one {@link CircuitBreaker} per host, all sharing the same configuration.
+ *
+ * @see SardineImpl#setCircuitBreakers(CircuitBreakerRegistry)
+ */
+public class CircuitBreakerRegistry
+{
+	static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private final int failureRate;
+
+	private final long slowCallDuration;
+
+	private final long openDuration;
+
+	private final int windowSize;
+
+	private final int minimumCalls;
+
+	private final int halfOpenProbes;
+
+	/**
+	 * @param failureRate      Percentage of failed or slow calls that opens the breaker
+	 * @param slowCallDuration Milliseconds after which a successful call counts as slow
+	 * @param openDuration     Milliseconds the breaker stays open before probing the host
+	 * @param windowSize       Number of recent calls the rates are computed from
+	 * @param minimumCalls     Number of calls needed before the breaker may open
+	 * @param halfOpenProbes   Number of successful probes needed to close the breaker
+	 */
+	public CircuitBreakerRegistry(int failureRate, long slowCallDuration, long openDuration, int windowSize, int minimumCalls, int halfOpenProbes)
+	{
+		this.failureRate = failureRate;
+		this.slowCallDuration = slowCallDuration;
+		this.openDuration = openDuration;
+		this.windowSize = windowSize;
+		this.minimumCalls = minimumCalls;
+		this.halfOpenProbes = halfOpenProbes;
+	}
+
+	/**
+	 * @param host Host name of the server
+	 * @return The breaker for the host, created on first use
+	 */
+	public CircuitBreaker get(String host)
+	{
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null)
+		{
+			CircuitBreaker created = new CircuitBreaker(host, this);
+			breaker = breakers.putIfAbsent(host, created);
+			if (breaker == null)
+			{
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * @return All breakers created so far
+	 */
+	public Collection<CircuitBreaker> getAll()
+	{
+		return Collections.unmodifiableCollection(breakers.values());
+	}
+
+	int getFailureRate()
+	{
+		return failureRate;
+	}
+
+	long getSlowCallDuration()
+	{
+		return slowCallDuration;
+	}
+
+	long getOpenDuration()
+	{
+		return openDuration;
+	}
+
+	int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	int getMinimumCalls()
+	{
+		return minimumCalls;
+	}
+
+	int getHalfOpenProbes()
+	{
+		return halfOpenProbes;
+	}
+}
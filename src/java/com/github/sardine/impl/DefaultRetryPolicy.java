@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries idempotent requests after transient I/O errors such as connection resets, waiting an exponentially
+ * growing, fully jittered delay between attempts.
+ * <p>
+ * <code>GET</code>, <code>HEAD</code>, <code>PROPFIND</code>, <code>REPORT</code> and <code>SEARCH</code> are always retried,
+ * <code>PUT</code> only when its entity is repeatable and it has no <code>If-Match</code> or
+ * <code>If-None-Match</code> precondition: when the response to a conditional <code>PUT</code> is lost the
+ * retry fails the precondition although the first attempt succeeded. Timeouts, unknown hosts, SSL failures,
+ * open circuit breakers and error responses from the server are never retried.
+ */
+public class DefaultRetryPolicy implements RetryPolicy
+{
+	private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList(
+			"GET", "HEAD", "PROPFIND", "REPORT", "SEARCH"));
+
+	private final int maxRetries;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	/**
+	 * @param maxRetries Number of retries after the first execution
+	 * @param baseDelay  Upper bound in milliseconds of the delay before the first retry
+	 * @param maxDelay   Upper bound in milliseconds of the delay before any retry
+	 */
+	public DefaultRetryPolicy(int maxRetries, long baseDelay, long maxDelay)
+	{
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	@Override
+	public boolean retryRequest(HttpRequestBase request, IOException exception, int executionCount)
+	{
+		if (executionCount > maxRetries)
+		{
+			return false;
+		}
+		if (exception instanceof HttpResponseException
+				|| exception instanceof CircuitBreakerOpenException
+				|| exception instanceof InterruptedIOException
+				|| exception instanceof UnknownHostException
+				|| exception instanceof SSLException)
+		{
+			return false;
+		}
+		return isIdempotent(request);
+	}
+
+	@Override
+	public long getBackoffMillis(int executionCount)
+	{
+		long ceiling = baseDelay << Math.min(executionCount - 1, 16);
+		if (ceiling <= 0 || ceiling > maxDelay)
+		{
+			ceiling = maxDelay;
+		}
+		return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	protected boolean isIdempotent(HttpRequestBase request)
+	{
+		String method = request.getMethod();
+		if (IDEMPOTENT_METHODS.contains(method))
+		{
+			return true;
+		}
+		if ("PUT".equals(method) && request instanceof HttpEntityEnclosingRequest)
+		{
+			if (request.containsHeader(HttpHeaders.IF_MATCH) || request.containsHeader(HttpHeaders.IF_NONE_MATCH))
+			{
+				return false;
+			}
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return false;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a second, hedged copy of a slow <code>GET</code> or <code>PROPFIND</code> once the first one has been
+ * outstanding for longer than a percentile of the recently observed latencies. Whichever copy answers first is
+ * used and the other one is aborted.
+ * <p>
+ * Latencies are kept per kind of request, as a request returning the raw response completes when the headers
+ * arrive while one with a response handler completes when the whole body has been handled. When more hedges are
+ * waiting than allowed, further requests are not hedged.
+ * <p>
+ * A single instance is meant to be shared by all {@link SardineImpl} instances talking to the same server, so
+ * that the latency samples and the hedging threads are shared as well.
+ *
+ * @see SardineImpl#setHedgePolicy(HedgePolicy)
+ */
+public class HedgePolicy
+{
+	/**
+	 * Minimum number of samples before any request is hedged.
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	private final double percentile;
+
+	private final long minDelay;
+
+	private final int sampleSize;
+
+	private final Map<String, Samples> samples = new HashMap<String, Samples>();
+
+	private final int maxQueued;
+
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * @param percentile Latency percentile, between 0 and 100, after which a request is hedged
+	 * @param minDelay   Minimum delay in milliseconds before a request is hedged
+	 * @param sampleSize Number of recent latencies to keep of every kind of request
+	 * @param threads    Maximum number of hedged requests executing at the same time
+	 * @param maxQueued  Maximum number of hedges waiting for their delay or a thread
+	 */
+	public HedgePolicy(double percentile, long minDelay, int sampleSize, int threads, int maxQueued)
+	{
+		this.percentile = percentile;
+		this.minDelay = minDelay;
+		this.sampleSize = sampleSize;
+		this.maxQueued = maxQueued;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "sardine-hedge-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		this.scheduler = executor;
+	}
+
+	/**
+	 * @return <code>true</code> if the request is of a kind that may be hedged
+	 */
+	public boolean isHedgeable(HttpRequestBase request)
+	{
+		String method = request.getMethod();
+		return "GET".equals(method) || "PROPFIND".equals(method);
+	}
+
+	/**
+	 * @param kind Kind of request, requests of one kind complete at the same point of the response
+	 * @return Milliseconds to wait before hedging, or <code>-1</code> while there are too few samples
+	 */
+	public synchronized long getHedgeDelayMillis(String kind)
+	{
+		Samples recent = samples.get(kind);
+		if (recent == null || recent.count < MIN_SAMPLES)
+		{
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(recent.latencies, recent.count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return Math.max(minDelay, sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+	}
+
+	/**
+	 * Records the latency of a successful hedgeable request.
+	 *
+	 * @param kind Kind of request, as passed to {@link #getHedgeDelayMillis(String)}
+	 */
+	public synchronized void recordLatency(String kind, long millis)
+	{
+		Samples recent = samples.get(kind);
+		if (recent == null)
+		{
+			recent = new Samples(sampleSize);
+			samples.put(kind, recent);
+		}
+		recent.latencies[recent.next] = millis;
+		recent.next = (recent.next + 1) % recent.latencies.length;
+		if (recent.count < recent.latencies.length)
+		{
+			recent.count++;
+		}
+	}
+
+	/**
+	 * @throws RejectedExecutionException When too many hedges are waiting already, the request is not hedged then
+	 */
+	ScheduledFuture<?> schedule(Runnable hedge, long delay)
+	{
+		// Cancelled hedges are removed from the queue, so it holds the hedges still to run
+		if (scheduler.getQueue().size() >= maxQueued)
+		{
+			throw new RejectedExecutionException("Too many hedged requests waiting");
+		}
+		return scheduler.schedule(hedge, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the hedging threads.
+	 */
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+	}
+
+	private static class Samples
+	{
+		private final long[] latencies;
+
+		private int count;
+
+		private int next;
+
+		Samples(int size)
+		{
+			this.latencies = new long[size];
+		}
+	}
+}
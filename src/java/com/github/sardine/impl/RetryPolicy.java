@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.IOException;
+
+/**
+ * Decides whether a request that failed with an {@link IOException} is sent again.
+ *
+ * @see SardineImpl#setRetryPolicy(RetryPolicy)
+ */
+public interface RetryPolicy
+{
+	/**
+	 * @param request        The request that failed
+	 * @param exception      The exception thrown while executing the request
+	 * @param executionCount Number of times the request has been executed so far
+	 * @return <code>true</code> if the request should be executed again
+	 */
+	boolean retryRequest(HttpRequestBase request, IOException exception, int executionCount);
+
+	/**
+	 * @param executionCount Number of times the request has been executed so far
+	 * @return Milliseconds to wait before the next execution
+	 */
+	long getBackoffMillis(int executionCount);
+}
@@ -19,6 +19,7 @@ package com.github.sardine.impl;
 import com.github.sardine.DavAce;
 import com.github.sardine.DavAcl;
 import com.github.sardine.DavPrincipal;
+import com.github.sardine.DavPutResult;
 import com.github.sardine.DavQuota;
 import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
@@ -26,8 +27,11 @@ import com.github.sardine.Version;
 import com.github.sardine.impl.handler.ExistsResponseHandler;
 import com.github.sardine.impl.handler.LockResponseHandler;
 import com.github.sardine.impl.handler.MultiStatusResponseHandler;
+import com.github.sardine.impl.handler.PutResponseHandler;
+import com.github.sardine.impl.handler.StreamingMultiStatusResponseHandler;
 import com.github.sardine.impl.handler.VoidResponseHandler;
 import com.github.sardine.impl.io.ContentLengthInputStream;
+import com.github.sardine.impl.io.DrainPolicy;
 import com.github.sardine.impl.io.HttpMethodReleaseInputStream;
 import com.github.sardine.impl.methods.HttpAcl;
 import com.github.sardine.impl.methods.HttpCopy;
@@ -66,12 +70,17 @@ import com.github.sardine.model.SearchRequest;
 import com.github.sardine.model.Set;
 import com.github.sardine.model.Write;
 import com.github.sardine.report.SardineReport;
+import com.github.sardine.util.FlightRecorderEvent;
 import com.github.sardine.util.SardineUtil;
 import org.apache.http.Consts;
 import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
@@ -84,6 +93,7 @@ import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -121,6 +131,8 @@ import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.util.VersionInfo;
 import org.w3c.dom.Element;
 
@@ -128,6 +140,7 @@ import javax.xml.namespace.QName;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.ProxySelector;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -137,6 +150,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
@@ -150,6 +168,28 @@ public class SardineImpl implements Sardine
 
 	private static final String UTF_8 = "UTF-8";
 
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+
+	/**
+	 * Context attribute with the System#nanoTime when the request got its connection
+	 */
+	private static final String CONNECTED_AT = "sardine.connected-at";
+
+	/**
+	 * Context attributes with the System#nanoTime when the request, including its body, was sent and when the
+	 * response headers were received, of the last exchange
+	 */
+	private static final String SENT_AT = "sardine.sent-at";
+
+	private static final String RESPONSE_AT = "sardine.response-at";
+
+	/**
+	 * Every attempt of every request, so JFR recordings attribute latency to the WebDAV server instead of socket reads
+	 */
+	private static final FlightRecorderEvent REQUEST_EVENT = new FlightRecorderEvent("com.github.sardine.Request", "WebDAV Request", "Sardine",
+			new String[]{"method", "host", "path", "status", "requestBytes", "responseBytes", "connectionTime"},
+			new Class<?>[]{String.class, String.class, String.class, int.class, long.class, long.class, long.class});
+
 	/**
 	 * HTTP client implementation
 	 */
@@ -166,6 +206,26 @@ public class SardineImpl implements Sardine
 	 */
 	protected HttpClientContext context = HttpClientContext.create();
 
+	/**
+	 * Decides which failed requests are sent again, none when null
+	 */
+	private RetryPolicy retryPolicy;
+
+	/**
+	 * Sends hedged copies of slow requests, none when null
+	 */
+	private HedgePolicy hedgePolicy;
+
+	/**
+	 * Circuit breakers of the hosts requests are sent to, none when null
+	 */
+	private CircuitBreakerRegistry circuitBreakers;
+
+	/**
+	 * Decides whether the remainder of a partially read response is consumed to keep the connection, never when null
+	 */
+	private DrainPolicy drainPolicy;
+
 	/**
 	 * Access resources with no authentication
 	 */
@@ -185,6 +245,21 @@ public class SardineImpl implements Sardine
 		this.client = this.builder.build();
 	}
 
+	/**
+	 * Access resources with Bearer authorization over connections shared with other instances, a connection kept
+	 * alive by one instance is reused by the next. Only the client of this instance is closed by {@link #shutdown()}.
+	 *
+	 * @param bearerAuth        Access token
+	 * @param connectionManager Connection pool shared by the instances, it should not keep connection state
+	 */
+	public SardineImpl(String bearerAuth, HttpClientConnectionManager connectionManager)
+	{
+		Header bearerHeader = new BasicHeader("Authorization", "Bearer " + bearerAuth);
+		this.builder = this.configure(null, null, connectionManager).setConnectionManagerShared(true).disableConnectionState()
+				.setDefaultHeaders(Collections.singletonList(bearerHeader));
+		this.client = this.builder.build();
+	}
+
 	/**
 	 * Supports standard authentication mechanisms
 	 *
@@ -321,6 +396,38 @@ public class SardineImpl implements Sardine
 		this.client = this.builder.build();
 	}
 
+	/**
+	 * @param retryPolicy Policy for retrying requests that failed with an I/O error, or null to never retry
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy)
+	{
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @param hedgePolicy Policy for hedging slow requests, or null to never hedge
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy)
+	{
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	/**
+	 * @param circuitBreakers Circuit breakers to consult before every request, or null to always send requests
+	 */
+	public void setCircuitBreakers(CircuitBreakerRegistry circuitBreakers)
+	{
+		this.circuitBreakers = circuitBreakers;
+	}
+
+	/**
+	 * @param drainPolicy Policy for consuming the unread remainder of streams closed early, or null to always abort the connection
+	 */
+	public void setDrainPolicy(DrainPolicy drainPolicy)
+	{
+		this.drainPolicy = drainPolicy;
+	}
+
 	@Override
 	public void enablePreemptiveAuthentication(String hostname)
 	{
@@ -484,10 +591,21 @@ public class SardineImpl implements Sardine
 	}
 
 	public List<DavResource> search(String url, String language, String query) throws IOException
+	{
+		return this.search(url, new SearchRequest(language, query));
+	}
+
+	/**
+	 * Perform a search of the Webdav repository.
+	 *
+	 * @param url           The base resource to search from.
+	 * @param searchRequest The search request, for example with a <code>DAV:basicsearch</code> query element.
+	 * @return List of resources matching the query.
+	 */
+	public List<DavResource> search(String url, SearchRequest searchRequest) throws IOException
 	{
 		HttpEntityEnclosingRequestBase search = new HttpSearch(url);
-		SearchRequest searchBody = new SearchRequest(language, query);
-		String body = SardineUtil.toXml(searchBody);
+		String body = SardineUtil.toXml(searchRequest);
 		search.setEntity(new StringEntity(body, UTF_8));
 		Multistatus multistatus = this.execute(search, new MultiStatusResponseHandler());
 		List<Response> responses = multistatus.getResponse();
@@ -506,6 +624,36 @@ public class SardineImpl implements Sardine
 		return resources;
 	}
 
+	/**
+	 * Perform a search of the Webdav repository, passing every resource to the callback as soon as it has been
+	 * parsed instead of collecting all of them first.
+	 *
+	 * @param url           The base resource to search from.
+	 * @param searchRequest The search request, for example with a <code>DAV:basicsearch</code> query element.
+	 * @param callback      Receives the resources matching the query in the order of the response.
+	 */
+	public void search(String url, SearchRequest searchRequest, final SardineUtil.Callback<DavResource> callback) throws IOException
+	{
+		HttpEntityEnclosingRequestBase search = new HttpSearch(url);
+		String body = SardineUtil.toXml(searchRequest);
+		search.setEntity(new StringEntity(body, UTF_8));
+		this.execute(search, new StreamingMultiStatusResponseHandler(new SardineUtil.Callback<Response>()
+		{
+			@Override
+			public void unmarshalled(Response response) throws IOException
+			{
+				try
+				{
+					callback.unmarshalled(new DavResource(response));
+				}
+				catch (URISyntaxException e)
+				{
+					log.warning(String.format("Ignore resource with invalid URI %s", response.getHref().get(0)));
+				}
+			}
+		}));
+	}
+
 	@Override
 	public void setCustomProps(String url, Map<String, String> set, List<String> remove) throws IOException
 	{
@@ -813,7 +961,7 @@ public class SardineImpl implements Sardine
 		{
 			handler.handleResponse(response);
 			// Will abort the read when closed before EOF.
-			return new ContentLengthInputStream(new HttpMethodReleaseInputStream(response), response.getEntity().getContentLength(), response);
+			return new ContentLengthInputStream(new HttpMethodReleaseInputStream(response, drainPolicy), response.getEntity().getContentLength(), response);
 		}
 		catch (IOException ex)
 		{
@@ -913,6 +1061,41 @@ public class SardineImpl implements Sardine
 		this.put(url, entity, headers, new VoidResponseHandler());
 	}
 
+	/**
+	 * Upload the entity using <code>PUT</code>, optionally only under a precondition, and return the
+	 * identity of the uploaded resource.
+	 *
+	 * @param url            Resource
+	 * @param entity         The entity to read from
+	 * @param contentType    Content Type header
+	 * @param expectContinue Add <code>Expect: continue</code> header
+	 * @param ifMatch        Only replace the resource if it still has this ETag, <code>null</code> for no condition
+	 * @param ifNoneMatch    Only create the resource if it does not exist yet, <code>If-None-Match: *</code>
+	 * @return ETag and file id of the uploaded resource
+	 * @throws com.github.sardine.impl.SardineException with status 412 when the precondition failed
+	 */
+	public DavPutResult put(String url, HttpEntity entity, String contentType, boolean expectContinue, String ifMatch, boolean ifNoneMatch) throws IOException
+	{
+		List<Header> headers = new ArrayList<Header>();
+		if (contentType != null)
+		{
+			headers.add(new BasicHeader(HttpHeaders.CONTENT_TYPE, contentType));
+		}
+		if (expectContinue)
+		{
+			headers.add(new BasicHeader(HTTP.EXPECT_DIRECTIVE, HTTP.EXPECT_CONTINUE));
+		}
+		if (ifMatch != null)
+		{
+			headers.add(new BasicHeader(HttpHeaders.IF_MATCH, ifMatch));
+		}
+		if (ifNoneMatch)
+		{
+			headers.add(new BasicHeader(HttpHeaders.IF_NONE_MATCH, "*"));
+		}
+		return this.put(url, entity, headers, new PutResponseHandler());
+	}
+
 	public <T> T put(String url, HttpEntity entity, List<Header> headers, ResponseHandler<T> handler) throws IOException
 	{
 		HttpPut put = new HttpPut(url);
@@ -1042,32 +1225,342 @@ public class SardineImpl implements Sardine
 	protected <T> T execute(HttpClientContext context, HttpRequestBase request, ResponseHandler<T> responseHandler)
 			throws IOException
 	{
+		int executionCount = 0;
+		while (true)
+		{
+			executionCount++;
+			try
+			{
+				long delay = hedgePolicy != null && hedgePolicy.isHedgeable(request)
+						? hedgePolicy.getHedgeDelayMillis(hedgeKind(request, responseHandler)) : -1;
+				if (delay >= 0)
+				{
+					return executeHedged(context, request, responseHandler, delay);
+				}
+				return executeOnce(context, request, responseHandler);
+			}
+			catch (HttpResponseException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				if (retryPolicy == null || !retryPolicy.retryRequest(request, e, executionCount))
+				{
+					throw e;
+				}
+				long backoff = retryPolicy.getBackoffMillis(executionCount);
+				log.fine(String.format("Retry %s %s in %d ms after %s", request.getMethod(), request.getURI(), backoff, e));
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted before retrying " + request.getURI());
+				}
+				// Clear the abort state so the request can be executed again
+				request.reset();
+			}
+		}
+	}
+
+	/**
+	 * Executes the request and, if it has not completed after <code>delay</code> milliseconds, a copy of it.
+	 * The first one to complete wins and the other one is aborted. When one of them fails while the other one is
+	 * still in flight, the other one decides the outcome.
+	 */
+	private <T> T executeHedged(final HttpClientContext context, final HttpRequestBase request, final ResponseHandler<T> responseHandler, long delay)
+			throws IOException
+	{
+		final HttpRequestBase hedge;
+		try
+		{
+			hedge = (HttpRequestBase) request.clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			return executeOnce(context, request, responseHandler);
+		}
+		final AtomicReference<Object> winner = new AtomicReference<Object>();
+		final AtomicReference<T> hedgeResult = new AtomicReference<T>();
+		final CountDownLatch hedgeDone = new CountDownLatch(1);
+		ScheduledFuture<?> scheduled;
+		try
+		{
+			scheduled = hedgePolicy.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if (winner.get() != null)
+						{
+							return;
+						}
+						log.fine(String.format("Hedging %s %s", request.getMethod(), request.getURI()));
+						T result = executeOnce(context, hedge, responseHandler);
+						if (winner.compareAndSet(null, hedge))
+						{
+							hedgeResult.set(result);
+							request.abort();
+						}
+						else
+						{
+							release(result);
+						}
+					}
+					catch (IOException e)
+					{
+						// Lost the race or failed, the primary request decides the outcome
+					}
+					finally
+					{
+						hedgeDone.countDown();
+					}
+				}
+			}, delay);
+		}
+		catch (RejectedExecutionException e)
+		{
+			return executeOnce(context, request, responseHandler);
+		}
+		boolean abortHedge = true;
+		try
+		{
+			T result = executeOnce(context, request, responseHandler);
+			if (winner.compareAndSet(null, request))
+			{
+				return result;
+			}
+			release(result);
+			abortHedge = false;
+		}
+		catch (IOException e)
+		{
+			if (!scheduled.cancel(false))
+			{
+				// The hedge is in flight or has won and aborted this request, either way it decides the outcome
+				abortHedge = false;
+				awaitHedge(hedgeDone, hedge, request);
+				if (winner.get() == hedge)
+				{
+					return hedgeResult.get();
+				}
+			}
+			throw e;
+		}
+		finally
+		{
+			// Also when the primary request failed with a runtime exception
+			if (abortHedge)
+			{
+				scheduled.cancel(false);
+				hedge.abort();
+			}
+		}
+		// The hedged request won
+		awaitHedge(hedgeDone, hedge, request);
+		return hedgeResult.get();
+	}
+
+	private void awaitHedge(CountDownLatch hedgeDone, HttpRequestBase hedge, HttpRequestBase request)
+			throws InterruptedIOException
+	{
+		try
+		{
+			hedgeDone.await();
+		}
+		catch (InterruptedException e)
+		{
+			hedge.abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for hedged request " + request.getURI());
+		}
+	}
+
+	/**
+	 * Closes a raw response that lost a hedging race, results of response handlers need no cleanup.
+	 */
+	private void release(Object result)
+	{
+		if (result instanceof CloseableHttpResponse)
+		{
+			try
+			{
+				((CloseableHttpResponse) result).close();
+			}
+			catch (IOException e)
+			{
+				log.fine(String.format("Failed to close response %s", e));
+			}
+		}
+	}
+
+	/**
+	 * A raw response is returned once its headers arrived, a response handler returns once it read the body.
+	 */
+	private static String hedgeKind(HttpRequestBase request, ResponseHandler<?> responseHandler)
+	{
+		return responseHandler != null ? request.getMethod() : request.getMethod() + " headers";
+	}
+
+	private <T> T executeOnce(HttpClientContext context, HttpRequestBase request, ResponseHandler<T> responseHandler)
+			throws IOException
+	{
+		CircuitBreaker breaker = null;
+		if (circuitBreakers != null && request.getURI().getHost() != null)
+		{
+			breaker = circuitBreakers.get(request.getURI().getHost());
+			breaker.acquirePermission();
+		}
 		HttpContext requestLocalContext = new BasicHttpContext(context);
+		FlightRecorderEvent.Event event = REQUEST_EVENT.begin();
+		long startNanos = System.nanoTime();
+		long start = System.currentTimeMillis();
 		try
 		{
+			T result;
 			if (responseHandler != null)
 			{
-				return this.client.execute(request, responseHandler, requestLocalContext);
+				result = this.client.execute(request, responseHandler, requestLocalContext);
 			}
 			else
 			{
-				return (T) this.client.execute(request, requestLocalContext);
+				result = (T) this.client.execute(request, requestLocalContext);
+			}
+			long duration = System.currentTimeMillis() - start;
+			if (breaker != null)
+			{
+				boolean serverError = result instanceof HttpResponse
+						&& ((HttpResponse) result).getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+				breaker.onResult(!serverError, serverMillis(requestLocalContext, duration));
 			}
+			if (hedgePolicy != null && hedgePolicy.isHedgeable(request))
+			{
+				hedgePolicy.recordLatency(hedgeKind(request, responseHandler), duration);
+			}
+			return result;
 		}
 		catch (HttpResponseException e)
 		{
+			if (breaker != null)
+			{
+				breaker.onResult(e.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR,
+						serverMillis(requestLocalContext, System.currentTimeMillis() - start));
+			}
 			// Don't abort if we get this exception, caller may want to repeat request.
 			throw e;
 		}
 		catch (IOException e)
 		{
+			if (breaker != null)
+			{
+				if (request.isAborted())
+				{
+					// Cancelled locally, e.g. lost a hedging race
+					breaker.onIgnored();
+				}
+				else
+				{
+					breaker.onResult(false, System.currentTimeMillis() - start);
+				}
+			}
 			request.abort();
 			throw e;
 		}
+		catch (RuntimeException e)
+		{
+			if (breaker != null)
+			{
+				breaker.onIgnored();
+			}
+			throw e;
+		}
 		finally
 		{
 			context.setAttribute(HttpClientContext.USER_TOKEN, requestLocalContext.getAttribute(HttpClientContext.USER_TOKEN));
+			commit(event, request, requestLocalContext, startNanos);
+		}
+	}
+
+	/**
+	 * Time the server took to respond, from the request being sent to the response headers. Sending a large body
+	 * or reading the response does not make a request slow for the circuit breaker.
+	 *
+	 * @param elapsed Milliseconds of the whole request, used when no response headers were received
+	 */
+	private static long serverMillis(HttpContext context, long elapsed)
+	{
+		Long sentAt = (Long) context.getAttribute(SENT_AT);
+		Long responseAt = (Long) context.getAttribute(RESPONSE_AT);
+		return sentAt != null && responseAt != null ? TimeUnit.NANOSECONDS.toMillis(responseAt - sentAt) : elapsed;
+	}
+
+	/**
+	 * Completes the flight recorder event of a request. The connection time is the time spent waiting for a pooled
+	 * connection, or connecting, before the request was sent. The response bytes are the Content-Length, -1 when unknown.
+	 */
+	private static void commit(FlightRecorderEvent.Event event, HttpRequestBase request, HttpContext context, long startNanos)
+	{
+		HttpResponse response = (HttpResponse) context.getAttribute(HttpCoreContext.HTTP_RESPONSE);
+		Long connectedAt = (Long) context.getAttribute(CONNECTED_AT);
+		HttpEntity requestEntity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+		event.set("method", request.getMethod())
+				.set("host", request.getURI().getHost())
+				.set("path", redact(request.getURI().getRawPath()))
+				.set("status", response != null ? response.getStatusLine().getStatusCode() : -1)
+				.set("requestBytes", requestEntity != null ? requestEntity.getContentLength() : 0L)
+				.set("responseBytes", response != null && response.getEntity() != null ? response.getEntity().getContentLength() : -1L)
+				.set("connectionTime", connectedAt != null ? connectedAt - startNanos : -1L)
+				.commit();
+	}
+
+	/**
+	 * Hides the names of files and folders in a path for recordings, which may leave the server. Everything up to the
+	 * segment after the script (<code>/remote.php/webdav</code>) is kept, the following segments are replaced by
+	 * <code>*</code> and only the extension of the last one is kept.
+	 */
+	public static String redact(String path)
+	{
+		if (path == null)
+		{
+			return "";
+		}
+		String[] segments = path.split("/", -1);
+		int keep = Math.min(segments.length, 2);
+		for (int i = 0; i < segments.length - 1; i++)
+		{
+			if (segments[i].endsWith(".php"))
+			{
+				keep = i + 2;
+				break;
+			}
+		}
+		StringBuilder redacted = new StringBuilder();
+		for (int i = 0; i < segments.length; i++)
+		{
+			if (i > 0)
+			{
+				redacted.append('/');
+			}
+			if (i < keep || segments[i].isEmpty())
+			{
+				redacted.append(segments[i]);
+			}
+			else
+			{
+				redacted.append('*');
+				int extension = segments[i].lastIndexOf('.');
+				if (i == segments.length - 1 && extension > 0 && segments[i].length() - extension <= 6)
+				{
+					redacted.append(segments[i].substring(extension));
+				}
+			}
 		}
+		return redacted.toString();
 	}
 
 	@Override
@@ -1085,7 +1578,18 @@ public class SardineImpl implements Sardine
 	protected HttpClientBuilder configure(ProxySelector selector, CredentialsProvider credentials)
 	{
 		Registry<ConnectionSocketFactory> schemeRegistry = this.createDefaultSchemeRegistry();
-		HttpClientConnectionManager cm = this.createDefaultConnectionManager(schemeRegistry);
+		return this.configure(selector, credentials, this.createDefaultConnectionManager(schemeRegistry));
+	}
+
+	/**
+	 * Creates a client with all of the defaults using the given connections.
+	 *
+	 * @param selector    Proxy configuration or null
+	 * @param credentials Authentication credentials or null
+	 * @param cm          Connection manager
+	 */
+	protected HttpClientBuilder configure(ProxySelector selector, CredentialsProvider credentials, HttpClientConnectionManager cm)
+	{
 		String version = Version.getSpecification();
 		if (version == null)
 		{
@@ -1099,6 +1603,30 @@ public class SardineImpl implements Sardine
 						// Only selectively enable this for PUT but not all entity enclosing methods
 						.setExpectContinueEnabled(false).build())
 				.setConnectionManager(cm)
+				.setRequestExecutor(new HttpRequestExecutor()
+				{
+					@Override
+					public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+							throws IOException, HttpException
+					{
+						// Only the first exchange counts when authentication or a redirect takes more than one
+						if (context.getAttribute(CONNECTED_AT) == null)
+						{
+							context.setAttribute(CONNECTED_AT, System.nanoTime());
+						}
+						return super.execute(request, conn, context);
+					}
+
+					@Override
+					protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+							throws HttpException, IOException
+					{
+						context.setAttribute(SENT_AT, System.nanoTime());
+						HttpResponse response = super.doReceiveResponse(request, conn, context);
+						context.setAttribute(RESPONSE_AT, System.nanoTime());
+						return response;
+					}
+				})
 				.setRoutePlanner(this.createDefaultRoutePlanner(this.createDefaultSchemePortResolver(), selector));
 	}
 
@@ -1147,7 +1675,12 @@ public class SardineImpl implements Sardine
 	 */
 	protected HttpClientConnectionManager createDefaultConnectionManager(Registry<ConnectionSocketFactory> schemeRegistry)
 	{
-		return new PoolingHttpClientConnectionManager(schemeRegistry);
+		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(schemeRegistry);
+		// The default of 2 connections per host would serialize parallel transfers such as the threads of the
+		// ant commands, connections are only opened when needed
+		cm.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+		cm.setMaxTotal(DEFAULT_MAX_CONNECTIONS_PER_ROUTE * 2);
+		return cm;
 	}
 
 	/**
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl.handler;
+
+import java.io.IOException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import com.github.sardine.DavPutResult;
+
+/**
+ * Collects the identity of the uploaded resource from the response to a <code>PUT</code>. The
+ * response is validated and the <code>ETag</code> read by {@link ETagResponseHandler}.
+ */
+public class PutResponseHandler extends ValidatingResponseHandler<DavPutResult>
+{
+	private final ETagResponseHandler etagHandler = new ETagResponseHandler();
+
+	@Override
+	public DavPutResult handleResponse(HttpResponse response) throws IOException
+	{
+		String etag = this.etagHandler.handleResponse(response);
+		return new DavPutResult(response.getStatusLine().getStatusCode(), etag,
+				this.getHeader(response, "OC-ETag"), this.getHeader(response, "OC-FileId"));
+	}
+
+	private String getHeader(HttpResponse response, String name)
+	{
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+}
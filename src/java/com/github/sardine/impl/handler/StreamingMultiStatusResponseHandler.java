@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl.handler;
+
+import com.github.sardine.impl.SardineException;
+import com.github.sardine.model.Response;
+import com.github.sardine.util.SardineUtil;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+
+/**
+ * {@link org.apache.http.client.ResponseHandler} which passes every <code>response</code> element of a multistatus
+ * response to a callback as soon as it has been parsed, instead of returning the whole
+ * {@link com.github.sardine.model.Multistatus} once all of it has been read.
+ * <p>
+ * Failures while reading the response, including those of the callback, are reported as {@link SardineException}
+ * so the request is not retried after some of the responses were passed on already.
+ */
+public class StreamingMultiStatusResponseHandler extends ValidatingResponseHandler<Void>
+{
+	private static final QName RESPONSE = new QName(SardineUtil.DEFAULT_NAMESPACE_URI, "response");
+
+	private final SardineUtil.Callback<Response> callback;
+
+	public StreamingMultiStatusResponseHandler(SardineUtil.Callback<Response> callback)
+	{
+		this.callback = callback;
+	}
+
+	@Override
+	public Void handleResponse(HttpResponse response) throws IOException
+	{
+		super.validateResponse(response);
+
+		HttpEntity entity = response.getEntity();
+		StatusLine statusLine = response.getStatusLine();
+		if (entity == null)
+		{
+			throw new SardineException("No entity found in response", statusLine.getStatusCode(),
+					statusLine.getReasonPhrase());
+		}
+		try
+		{
+			SardineUtil.unmarshal(entity.getContent(), RESPONSE, Response.class, callback);
+			return null;
+		}
+		catch (IOException e)
+		{
+			SardineException failure = new SardineException(e.getMessage(), statusLine.getStatusCode(), statusLine.getReasonPhrase());
+			failure.initCause(e);
+			throw failure;
+		}
+	}
+}
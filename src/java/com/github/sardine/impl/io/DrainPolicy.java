@@ -0,0 +1,109 @@
+/*
+ * Copyright 2009-2011 Jon Stevens et al.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.sardine.impl.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how much of an unread response body is consumed when a stream returned by
+ * {@link com.github.sardine.impl.SardineImpl#get(String)} is closed early. Reading the remainder lets the
+ * connection go back to the pool, while aborting throws it away together with its TLS session. A small
+ * remainder is cheaper to read than a new handshake, a large one is not.
+ * <p>
+ * A single instance is meant to be shared by all {@link com.github.sardine.impl.SardineImpl} instances, so
+ * that the counters cover all of them.
+ *
+ * @see com.github.sardine.impl.SardineImpl#setDrainPolicy(DrainPolicy)
+ */
+public class DrainPolicy
+{
+	private final long maxBytes;
+
+	private final long maxMillis;
+
+	private final AtomicLong reused = new AtomicLong();
+
+	private final AtomicLong aborted = new AtomicLong();
+
+	private final AtomicLong drainedBytes = new AtomicLong();
+
+	/**
+	 * @param maxBytes  Maximum number of unread bytes consumed to keep a connection, 0 to never drain
+	 * @param maxMillis Maximum time in milliseconds spent consuming them
+	 */
+	public DrainPolicy(long maxBytes, long maxMillis)
+	{
+		this.maxBytes = maxBytes;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * @param remaining Number of unread bytes, or -1 when the response has no Content-Length
+	 * @return False when the remainder is known to exceed the byte budget and the connection should be
+	 * aborted without reading anything
+	 */
+	public boolean shouldDrain(long remaining)
+	{
+		return maxBytes > 0 && maxMillis > 0 && remaining <= maxBytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getMaxMillis()
+	{
+		return maxMillis;
+	}
+
+	void reused(long drained)
+	{
+		reused.incrementAndGet();
+		drainedBytes.addAndGet(drained);
+	}
+
+	void aborted(long drained)
+	{
+		aborted.incrementAndGet();
+		drainedBytes.addAndGet(drained);
+	}
+
+	/**
+	 * @return Number of responses closed with the connection kept for reuse
+	 */
+	public long getReused()
+	{
+		return reused.get();
+	}
+
+	/**
+	 * @return Number of responses closed by aborting the connection
+	 */
+	public long getAborted()
+	{
+		return aborted.get();
+	}
+
+	/**
+	 * @return Number of bytes read and discarded to keep connections
+	 */
+	public long getDrainedBytes()
+	{
+		return drainedBytes.get();
+	}
+}
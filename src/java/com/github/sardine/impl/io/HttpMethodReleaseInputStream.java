@@ -30,19 +30,66 @@ public class HttpMethodReleaseInputStream extends ByteCountInputStream
 
 	private HttpResponse response;
 
+	/**
+	 * Decides whether an unread remainder is consumed on close, never when null
+	 */
+	private DrainPolicy drainPolicy;
+
+	/**
+	 * Set once the end of the body has been read, which is the only way to tell for chunked responses
+	 */
+	private boolean eof;
+
+	private boolean closed;
+
 	/**
 	 * @param response The HTTP response to read from
 	 * @throws IOException          If there is a problem reading from the response
 	 * @throws NullPointerException If the response has no message entity
 	 */
 	public HttpMethodReleaseInputStream(final HttpResponse response) throws IOException
+	{
+		this(response, null);
+	}
+
+	/**
+	 * @param response    The HTTP response to read from
+	 * @param drainPolicy Policy for consuming an unread remainder on close, or null to always abort
+	 * @throws IOException          If there is a problem reading from the response
+	 * @throws NullPointerException If the response has no message entity
+	 */
+	public HttpMethodReleaseInputStream(final HttpResponse response, final DrainPolicy drainPolicy) throws IOException
 	{
 		super(response.getEntity().getContent());
 		this.response = response;
+		this.drainPolicy = drainPolicy;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		final int data = super.read();
+		eof |= data == -1;
+		return data;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		final int read = super.read(b, off, len);
+		eof |= read == -1;
+		return read;
 	}
 
 	/**
-	 * This will force close the connection if the content has not been fully consumed
+	 * This will consume the remainder of the content within the budget of the drain policy so the connection
+	 * can be reused, and force close the connection otherwise.
 	 *
 	 * @throws IOException if an I/O error occurs
 	 * @see CloseableHttpResponse#close()
@@ -51,25 +98,44 @@ public class HttpMethodReleaseInputStream extends ByteCountInputStream
 	@Override
 	public void close() throws IOException
 	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
 		if (response instanceof CloseableHttpResponse)
 		{
+			long length = response.getEntity().getContentLength();
 			long read = this.getByteCount();
-			if (read == response.getEntity().getContentLength())
+			long drained = 0;
+			if (!eof && read != length && drainPolicy != null && drainPolicy.shouldDrain(length < 0 ? -1 : length - read))
+			{
+				drained = this.drain();
+			}
+			if (eof || this.getByteCount() == length)
 			{
-				// Fully consumed
+				// Fully consumed, closing the entity stream releases the connection back to the pool
 				super.close();
+				if (drainPolicy != null)
+				{
+					drainPolicy.reused(drained);
+				}
 			}
 			else
 			{
-				if (log.isLoggable(Level.WARNING))
+				if (log.isLoggable(Level.FINE))
 				{
-					log.warning(String.format("Abort connection for response %s", response));
+					log.fine(String.format("Abort connection for response %s after %d bytes", response, this.getByteCount()));
 				}
 				// Close an HTTP response as quickly as possible, avoiding consuming
 				// response data unnecessarily though at the expense of making underlying
 				// connections unavailable for reuse.
 				// The response proxy will force close the connection.
 				((CloseableHttpResponse) response).close();
+				if (drainPolicy != null)
+				{
+					drainPolicy.aborted(drained);
+				}
 			}
 		}
 		else
@@ -78,4 +144,34 @@ public class HttpMethodReleaseInputStream extends ByteCountInputStream
 			super.close();
 		}
 	}
+
+	/**
+	 * Reads and discards the remainder until the end of the body or until the byte or time budget of the drain
+	 * policy is used up. A single read blocks at most for the socket timeout.
+	 *
+	 * @return Number of bytes discarded
+	 */
+	private long drain()
+	{
+		final long deadline = System.currentTimeMillis() + drainPolicy.getMaxMillis();
+		final byte[] buffer = new byte[(int) Math.min(8192, drainPolicy.getMaxBytes() + 1)];
+		long drained = 0;
+		try
+		{
+			while (drained <= drainPolicy.getMaxBytes() && System.currentTimeMillis() < deadline)
+			{
+				int read = this.read(buffer, 0, buffer.length);
+				if (read == -1)
+				{
+					break;
+				}
+				drained += read;
+			}
+		}
+		catch (IOException e)
+		{
+			log.fine(String.format("Failed to drain response %s: %s", response, e.getMessage()));
+		}
+		return drained;
+	}
 }
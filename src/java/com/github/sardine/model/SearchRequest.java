@@ -10,6 +10,8 @@ import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 import javax.xml.namespace.QName;
 
+import org.w3c.dom.Element;
+
 /**
  * <p>Java class for anonymous complex type.</p>
  *
@@ -31,6 +33,8 @@ public class SearchRequest
 
 	private String query;
 
+	private Element queryElement;
+
 	public SearchRequest()
 	{
 		this.language = "davbasic";
@@ -43,6 +47,19 @@ public class SearchRequest
 		this.query = query;
 	}
 
+	/**
+	 * A search request with a structured query such as <code>DAV:basicsearch</code>, which is sent as is
+	 * instead of as the text content of the language element.
+	 *
+	 * @param queryElement the query, its name is the query language
+	 */
+	public SearchRequest(Element queryElement)
+	{
+		this.language = queryElement.getLocalName();
+		this.query = "";
+		this.queryElement = queryElement;
+	}
+
 	public final String getLanguage()
 	{
 		return language;
@@ -66,8 +83,12 @@ public class SearchRequest
 	}
 
 	@XmlAnyElement
-	public JAXBElement<String> getElement()
+	public Object getElement()
 	{
+		if (queryElement != null)
+		{
+			return queryElement;
+		}
 		return new JAXBElement<String>(new QName("DAV:", language), String.class, query);
 	}
 }
@@ -0,0 +1,192 @@
+package com.github.sardine.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A custom Java Flight Recorder event type, defined at runtime with <code>jdk.jfr.EventFactory</code> so the code
+ * still compiles for and runs on Java 8 runtimes without JFR. When JFR is not available, or the event is not enabled
+ * in any recording, {@link #begin()} returns an event that does nothing, so emitting events costs next to nothing
+ * unless a recording is running.
+ * <p>
+ * Events are enabled by default and record their duration from {@link #begin()} to {@link Event#commit()}. Fields
+ * whose name ends with <code>Time</code> are durations in nanoseconds.
+ */
+public class FlightRecorderEvent
+{
+	private static final Logger log = Logger.getLogger(FlightRecorderEvent.class.getName());
+
+	private static final Event DISABLED = new Event(null, null);
+
+	private final Map<String, Integer> fields = new HashMap<String, Integer>();
+
+	private Object factory;
+
+	private Object eventType;
+
+	private Method newEvent;
+
+	private Method isEnabled;
+
+	private Method begin;
+
+	private Method set;
+
+	private Method commit;
+
+	/**
+	 * @param name     Unique name of the event type, e.g. <code>com.github.sardine.Request</code>
+	 * @param label    Name of the event type shown in JDK Mission Control
+	 * @param category Category the event type is listed under
+	 * @param names    Names of the fields
+	 * @param types    Types of the fields, <code>String.class</code> or a primitive type
+	 */
+	public FlightRecorderEvent(String name, String label, String category, String[] names, Class<?>[] types)
+	{
+		for (int i = 0; i < names.length; i++)
+		{
+			fields.put(names[i], i);
+		}
+		try
+		{
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Name"), name));
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Label"), label));
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Category"), new String[]{category}));
+			List<Object> descriptors = new ArrayList<Object>();
+			for (int i = 0; i < names.length; i++)
+			{
+				List<Object> fieldAnnotations = Collections.emptyList();
+				if (names[i].endsWith("Time"))
+				{
+					fieldAnnotations = Arrays.asList(newAnnotation.newInstance(annotation("jdk.jfr.Timespan"), "NANOSECONDS"));
+				}
+				descriptors.add(newField.newInstance(types[i], names[i], fieldAnnotations));
+			}
+
+			factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+			eventType = factoryClass.getMethod("getEventType").invoke(factory);
+			newEvent = factoryClass.getMethod("newEvent");
+			isEnabled = eventType.getClass().getMethod("isEnabled");
+			begin = eventClass.getMethod("begin");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+		}
+		catch (ClassNotFoundException e)
+		{
+			// No JFR in this runtime
+			factory = null;
+		}
+		catch (Exception e)
+		{
+			if (log.isLoggable(Level.FINE))
+			{
+				log.fine(String.format("Failed to define flight recorder event %s: %s", name, e));
+			}
+			factory = null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException
+	{
+		return (Class<? extends Annotation>) Class.forName(name);
+	}
+
+	/**
+	 * @return A started event, or one that does nothing if the event type is not recorded
+	 */
+	public Event begin()
+	{
+		if (factory == null)
+		{
+			return DISABLED;
+		}
+		try
+		{
+			if (!(Boolean) isEnabled.invoke(eventType))
+			{
+				return DISABLED;
+			}
+			Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			return new Event(this, event);
+		}
+		catch (Exception e)
+		{
+			return DISABLED;
+		}
+	}
+
+	/**
+	 * One occurrence of the event
+	 */
+	public static class Event
+	{
+		private final FlightRecorderEvent type;
+
+		private final Object event;
+
+		private Event(FlightRecorderEvent type, Object event)
+		{
+			this.type = type;
+			this.event = event;
+		}
+
+		/**
+		 * @param name  Name of the field
+		 * @param value Value of the type declared for the field, ignored for unknown fields
+		 * @return This event
+		 */
+		public Event set(String name, Object value)
+		{
+			Integer index = event != null ? type.fields.get(name) : null;
+			if (index != null)
+			{
+				try
+				{
+					type.set.invoke(event, index, value);
+				}
+				catch (Exception e)
+				{
+					// Wrong type, leave the field empty
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Ends the event and writes it to the recordings
+		 */
+		public void commit()
+		{
+			if (event != null)
+			{
+				try
+				{
+					type.commit.invoke(event);
+				}
+				catch (Exception e)
+				{
+					// Recording stopped
+				}
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.github.sardine.util;
 
+import com.github.sardine.impl.io.ByteCountInputStream;
 import com.github.sardine.model.ObjectFactory;
 
 import org.w3c.dom.Document;
@@ -15,6 +16,9 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -81,6 +85,23 @@ public final class SardineUtil
 
 	private static final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 
+	/**
+	 * Reader factory for responses processed while they arrive, without DTDs or external entities
+	 */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static
+	{
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Time spent reading and parsing responses, which includes waiting for the rest of the response to arrive
+	 */
+	private static final FlightRecorderEvent XML_EVENT = new FlightRecorderEvent("com.github.sardine.XmlParse", "WebDAV XML Parse", "Sardine",
+			new String[]{"type", "bytes"}, new Class<?>[]{String.class, long.class});
+
 	static
 	{
 		try
@@ -145,6 +166,8 @@ public final class SardineUtil
 	public static <T> T unmarshal(InputStream in) throws IOException
 	{
 		Unmarshaller unmarshaller = createUnmarshaller();
+		FlightRecorderEvent.Event event = XML_EVENT.begin();
+		ByteCountInputStream counted = new ByteCountInputStream(in);
 		try
 		{
 			XMLReader reader = XMLReaderFactory.createXMLReader();
@@ -183,7 +206,9 @@ public final class SardineUtil
 			{
 				; //Not all parsers will support this attribute
 			}
-			return (T) unmarshaller.unmarshal(new SAXSource(reader, new InputSource(in)));
+			T result = (T) unmarshaller.unmarshal(new SAXSource(reader, new InputSource(counted)));
+			event.set("type", result.getClass().getSimpleName());
+			return result;
 		}
 		catch (SAXException e)
 		{
@@ -199,6 +224,7 @@ public final class SardineUtil
 		}
 		finally
 		{
+			event.set("bytes", counted.getByteCount()).commit();
 			if (unmarshaller instanceof Closeable)
 			{
 				try
@@ -213,6 +239,75 @@ public final class SardineUtil
 		}
 	}
 
+	/**
+	 * Receives elements unmarshalled by {@link SardineUtil#unmarshal(InputStream, QName, Class, Callback)}.
+	 */
+	public interface Callback<T>
+	{
+		void unmarshalled(T element) throws IOException;
+	}
+
+	/**
+	 * Unmarshals every <code>element</code> of the document and passes it to the callback as soon as it has been
+	 * read, so a large response is processed while it arrives instead of being held in memory as a whole.
+	 *
+	 * @param in       The input to read the elements from
+	 * @param element  Name of the elements to unmarshal, wherever they are in the document
+	 * @param type     Class the elements are unmarshalled to
+	 * @param callback Receives the elements in document order
+	 * @throws IOException When there is a JAXB or XML error, or from the callback
+	 */
+	public static <T> void unmarshal(InputStream in, QName element, Class<T> type, Callback<T> callback) throws IOException
+	{
+		Unmarshaller unmarshaller = createUnmarshaller();
+		FlightRecorderEvent.Event event = XML_EVENT.begin().set("type", type.getSimpleName());
+		ByteCountInputStream counted = new ByteCountInputStream(in);
+		XMLStreamReader reader = null;
+		try
+		{
+			reader = INPUT_FACTORY.createXMLStreamReader(counted);
+			while (reader.hasNext())
+			{
+				if (reader.isStartElement() && element.equals(reader.getName()))
+				{
+					// Leaves the reader at the event after the end of the element
+					callback.unmarshalled(unmarshaller.unmarshal(reader, type).getValue());
+				}
+				else
+				{
+					reader.next();
+				}
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			IOException failure = new IOException("Not a valid DAV response");
+			failure.initCause(e);
+			throw failure;
+		}
+		catch (JAXBException e)
+		{
+			IOException failure = new IOException("Not a valid DAV response");
+			failure.initCause(e);
+			throw failure;
+		}
+		finally
+		{
+			event.set("bytes", counted.getByteCount()).commit();
+			if (reader != null)
+			{
+				try
+				{
+					reader.close();
+				}
+				catch (XMLStreamException e)
+				{
+					// there's not much we can do here
+				}
+			}
+		}
+	}
+
 	/**
 	 * Creates an {@link Unmarshaller} from the {@link SardineUtil#JAXB_CONTEXT}.
 	 * Note: the unmarshaller is not thread safe, so it must be created for every request.
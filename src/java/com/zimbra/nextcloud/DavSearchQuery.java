@@ -0,0 +1,183 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.github.sardine.model.SearchRequest;
+
+/**
+ * Builds a DASL <code>DAV:basicsearch</code> query (RFC 5323) as implemented by Nextcloud, so filtering,
+ * ordering and paging of folder listings and searches is done by Nextcloud instead of by transferring
+ * every entry.
+ * <p>
+ * Nextcloud supports <code>like</code> on <code>displayname</code> and <code>getcontenttype</code>,
+ * comparisons on <code>getlastmodified</code> and <code>oc:size</code>, and the offset of a page as the
+ * <code>firstresult</code> element of the SearchDAV namespace.
+ * https://docs.nextcloud.com/server/latest/developer_manual/client_apis/WebDAV/search.html
+ */
+public class DavSearchQuery {
+    public static final String DAV = "DAV:";
+    public static final String OC = "http://owncloud.org/ns";
+    public static final String SEARCHDAV = "https://github.com/icewind1991/SearchDAV/ns";
+
+    public static final QName DISPLAYNAME = new QName(DAV, "displayname", "d");
+    public static final QName GETCONTENTTYPE = new QName(DAV, "getcontenttype", "d");
+    public static final QName GETLASTMODIFIED = new QName(DAV, "getlastmodified", "d");
+    public static final QName SIZE = new QName(OC, "size", "oc");
+
+    private final Document document;
+    private final Element basicsearch;
+    private final Element where;
+    private final List<Element> conditions = new ArrayList<>();
+    private final List<Element> orders = new ArrayList<>();
+    private Element limit;
+
+    /**
+     * @param scope href of the folder to search, relative to the DAV root, for example /files/user/Documents
+     * @param depth "1" for the direct children of the folder, "infinity" for all descendants
+     * @param props properties returned for every match
+     */
+    public DavSearchQuery(String scope, String depth, Set<QName> props) throws ParserConfigurationException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        document = factory.newDocumentBuilder().newDocument();
+        basicsearch = element(DAV, "d:basicsearch");
+
+        Element select = append(basicsearch, DAV, "d:select");
+        Element prop = append(select, DAV, "d:prop");
+        for (QName name : props) {
+            prop.appendChild(element(name));
+        }
+        Element from = append(basicsearch, DAV, "d:from");
+        Element scopeElement = append(from, DAV, "d:scope");
+        append(scopeElement, DAV, "d:href").setTextContent(scope);
+        append(scopeElement, DAV, "d:depth").setTextContent(depth);
+        where = element(DAV, "d:where");
+    }
+
+    /**
+     * Matches entries whose property matches a pattern, <code>%</code> matches any characters and <code>_</code>
+     * a single character, literal text from the user has to be passed through {@link #escapeLike(String)}.
+     */
+    public DavSearchQuery like(QName prop, String pattern) {
+        conditions.add(comparison("d:like", prop, pattern));
+        return this;
+    }
+
+    /**
+     * Escapes the wildcards of <code>like</code> in a literal, Nextcloud passes the pattern on to the SQL
+     * LIKE of its database, where a backslash is the escape character.
+     */
+    public static String escapeLike(String literal) {
+        return literal.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    public DavSearchQuery greaterThanOrEqual(QName prop, String literal) {
+        conditions.add(comparison("d:gte", prop, literal));
+        return this;
+    }
+
+    public DavSearchQuery lessThanOrEqual(QName prop, String literal) {
+        conditions.add(comparison("d:lte", prop, literal));
+        return this;
+    }
+
+    public DavSearchQuery orderBy(QName prop, boolean ascending) {
+        Element order = element(DAV, "d:order");
+        append(order, DAV, "d:prop").appendChild(element(prop));
+        append(order, DAV, ascending ? "d:ascending" : "d:descending");
+        orders.add(order);
+        return this;
+    }
+
+    /**
+     * @param nresults    maximum number of entries returned
+     * @param firstResult number of matching entries skipped, for paging
+     */
+    public DavSearchQuery limit(int nresults, int firstResult) {
+        limit = element(DAV, "d:limit");
+        append(limit, DAV, "d:nresults").setTextContent(Integer.toString(nresults));
+        if (firstResult > 0) {
+            append(limit, SEARCHDAV, "ns:firstresult").setTextContent(Integer.toString(firstResult));
+        }
+        return this;
+    }
+
+    /**
+     * @return the query to send with {@link com.github.sardine.impl.SardineImpl#search(String, SearchRequest)}
+     */
+    public SearchRequest toSearchRequest() {
+        if (where.getParentNode() == null) {
+            //Nextcloud requires a where clause, without conditions match any name
+            if (conditions.isEmpty()) {
+                like(DISPLAYNAME, "%");
+            }
+            if (conditions.size() == 1) {
+                where.appendChild(conditions.get(0));
+            } else {
+                Element and = append(where, DAV, "d:and");
+                for (Element condition : conditions) {
+                    and.appendChild(condition);
+                }
+            }
+            basicsearch.appendChild(where);
+            Element orderby = append(basicsearch, DAV, "d:orderby");
+            for (Element order : orders) {
+                orderby.appendChild(order);
+            }
+            if (limit != null) {
+                basicsearch.appendChild(limit);
+            }
+        }
+        return new SearchRequest(basicsearch);
+    }
+
+    private Element comparison(String operator, QName prop, String literal) {
+        Element comparison = element(DAV, operator);
+        append(comparison, DAV, "d:prop").appendChild(element(prop));
+        append(comparison, DAV, "d:literal").setTextContent(literal);
+        return comparison;
+    }
+
+    private Element element(String namespace, String qualifiedName) {
+        return document.createElementNS(namespace, qualifiedName);
+    }
+
+    private Element element(QName name) {
+        String prefix = name.getPrefix().isEmpty() ? "x" : name.getPrefix();
+        return element(name.getNamespaceURI(), prefix + ":" + name.getLocalPart());
+    }
+
+    private Element append(Element parent, String namespace, String qualifiedName) {
+        Element child = element(namespace, qualifiedName);
+        parent.appendChild(child);
+        return child;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Fetches folder listings in the background before the user opens them.
+ * <p>
+ * Prefetches run on a few low priority threads with a bounded queue, when the queue is half full the node
+ * is considered busy and no further prefetches are queued. A prefetched listing is kept for a short time
+ * and handed out once, so the user never sees a listing older than the time to live. Starting new
+ * prefetches for an account cancels the ones of that account that did not start yet, as the user has
+ * navigated away from the folder they were for.
+ * <p>
+ * Every prefetch is registered with a generation number while it runs. Invalidating a folder unregisters the
+ * running prefetches of that folder, so a listing fetched before the change is discarded instead of cached.
+ */
+public class ListingPrefetcher {
+    private static final int MAX_CACHED = 1000;
+
+    private final long ttl;
+    private final int queueSize;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Cached> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Future<?>>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> running = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param ttl       milliseconds a prefetched listing may be handed out
+     * @param threads   number of threads running prefetches
+     * @param queueSize maximum number of queued prefetches
+     */
+    public ListingPrefetcher(long ttl, int threads, int queueSize) {
+        this.ttl = ttl;
+        this.queueSize = queueSize;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "nextcloud-prefetch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns and removes a prefetched listing.
+     *
+     * @param key identifies the listing
+     * @return the listing, or null if it was not prefetched or has expired
+     */
+    public JSONArray take(String key) {
+        Cached cached = cache.remove(key);
+        if (cached == null || cached.expires < System.currentTimeMillis()) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.listing;
+    }
+
+    /**
+     * Cancels the prefetches of an account that did not start yet.
+     *
+     * @param accountId account that navigated to another folder
+     */
+    public void cancel(String accountId) {
+        List<Future<?>> futures = pending.remove(accountId);
+        if (futures != null) {
+            for (Future<?> future : futures) {
+                if (future.cancel(false)) {
+                    cancelled.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues prefetches for an account, in iteration order, unless the node is busy.
+     *
+     * @param accountId account the listings are fetched for
+     * @param listings  listings to fetch by key
+     */
+    public void prefetch(String accountId, Map<String, Callable<JSONArray>> listings) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, Callable<JSONArray>> listing : listings.entrySet()) {
+            if (cache.containsKey(listing.getKey())) {
+                continue;
+            }
+            if (executor.getQueue().size() >= queueSize / 2) {
+                skipped.incrementAndGet();
+                break;
+            }
+            try {
+                futures.add(executor.submit(() -> fetch(listing.getKey(), listing.getValue())));
+            } catch (RejectedExecutionException e) {
+                skipped.incrementAndGet();
+                break;
+            }
+        }
+        if (!futures.isEmpty()) {
+            pending.put(accountId, futures);
+        }
+    }
+
+    private void fetch(String key, Callable<JSONArray> call) {
+        Long generation = generations.incrementAndGet();
+        running.put(key, generation);
+        try {
+            JSONArray listing = call.call();
+            if (cache.size() >= MAX_CACHED) {
+                purgeExpired();
+            }
+            if (listing != null && cache.size() < MAX_CACHED) {
+                Cached cached = new Cached(listing, System.currentTimeMillis() + ttl);
+                cache.put(key, cached);
+                //the folder was invalidated while it was listed, checked after caching so an invalidation
+                //in between removes the entry as well
+                if (running.remove(key, generation)) {
+                    prefetched.incrementAndGet();
+                } else {
+                    cache.remove(key, cached);
+                }
+            }
+        } catch (Exception e) {
+            ZimbraLog.extensions.debug("Prefetch failed: " + e.getMessage());
+        } finally {
+            running.remove(key, generation);
+        }
+    }
+
+    /**
+     * Removes prefetched listings that are no longer accurate, including the ones still being fetched.
+     *
+     * @param keyPart part of the key of the listings, for example the path of a changed folder
+     */
+    public void invalidate(String keyPart) {
+        running.keySet().removeIf(key -> key.contains(keyPart));
+        cache.keySet().removeIf(key -> key.contains(keyPart));
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Cached> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expires < now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getCached() {
+        return cache.size();
+    }
+
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private static class Cached {
+        final JSONArray listing;
+        final long expires;
+
+        Cached(JSONArray listing, long expires) {
+            this.listing = listing;
+            this.expires = expires;
+        }
+    }
+}
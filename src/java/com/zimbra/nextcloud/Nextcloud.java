@@ -21,21 +21,47 @@ package com.zimbra.nextcloud;
 
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 import javax.xml.namespace.QName;
 
 import com.zimbra.common.httpclient.HttpClientUtil;
@@ -44,34 +70,86 @@ import com.zimbra.cs.httpclient.HttpProxyUtil;
 import com.zimbra.cs.servlet.util.AuthUtil;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.github.sardine.DavPutResult;
 import com.github.sardine.DavResource;
+import com.github.sardine.impl.CircuitBreaker;
+import com.github.sardine.impl.CircuitBreakerOpenException;
+import com.github.sardine.impl.CircuitBreakerRegistry;
+import com.github.sardine.impl.DefaultRetryPolicy;
+import com.github.sardine.impl.HedgePolicy;
+import com.github.sardine.impl.RetryPolicy;
 import com.github.sardine.impl.SardineImpl;
 import com.github.sardine.impl.io.ContentLengthInputStream;
+import com.github.sardine.impl.io.DrainPolicy;
+import com.github.sardine.util.FlightRecorderEvent;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 import com.zimbra.cs.extension.ExtensionHttpHandler;
+import com.zimbra.cs.extension.ZimbraExtension;
+import com.zimbra.cs.service.FileUploadServlet;
 import com.zimbra.cs.httpclient.URLUtil;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.util.JMSession;
 import com.zimbra.oauth.token.handlers.impl.NextCloudTokenHandler;
 import com.zimbra.common.localconfig.KnownKey;
+import com.zimbra.common.service.ServiceException;
 
 public class Nextcloud extends ExtensionHttpHandler {
     public static final KnownKey nextcloud_zimlet_zimbra_hostname_override;
     public static final KnownKey nextcloud_zimlet_debug;
     public static final KnownKey nextcloud_request_timeout;
+    public static final KnownKey nextcloud_retry_max;
+    public static final KnownKey nextcloud_retry_backoff;
+    public static final KnownKey nextcloud_hedge_percentile;
+    public static final KnownKey nextcloud_circuit_failure_rate;
+    public static final KnownKey nextcloud_circuit_slow_call;
+    public static final KnownKey nextcloud_circuit_open_duration;
+    public static final KnownKey nextcloud_transfer_budget;
+    public static final KnownKey nextcloud_transfer_budget_wait;
+    public static final KnownKey nextcloud_transfer_spill_threshold;
+    public static final KnownKey nextcloud_transfer_spill_dir;
+    public static final KnownKey nextcloud_job_dir;
+    public static final KnownKey nextcloud_job_queue_size;
+    public static final KnownKey nextcloud_job_workers;
+    public static final KnownKey nextcloud_preview_cache_dir;
+    public static final KnownKey nextcloud_preview_cache_size;
+    public static final KnownKey nextcloud_prefetch_count;
+    public static final KnownKey nextcloud_prefetch_ttl;
+    public static final KnownKey nextcloud_quota_refresh;
+    public static final KnownKey nextcloud_drain_bytes;
+    public static final KnownKey nextcloud_drain_time;
+    public static final KnownKey nextcloud_slow_request;
+    public static final KnownKey nextcloud_split_mail;
+    public static final KnownKey nextcloud_gzip_threshold;
+    public static final KnownKey nextcloud_url;
 
     static {
         nextcloud_zimlet_debug = new KnownKey("nextcloud_zimlet_debug");
@@ -88,221 +166,1580 @@ public class Nextcloud extends ExtensionHttpHandler {
         nextcloud_request_timeout.setDefault("15000");
     }
 
+    static {
+        nextcloud_retry_max = new KnownKey("nextcloud_retry_max");
+        nextcloud_retry_max.setDefault("2");
+    }
+
+    static {
+        nextcloud_retry_backoff = new KnownKey("nextcloud_retry_backoff");
+        nextcloud_retry_backoff.setDefault("200");
+    }
+
+    static {
+        nextcloud_hedge_percentile = new KnownKey("nextcloud_hedge_percentile");
+        nextcloud_hedge_percentile.setDefault("0");
+    }
+
+    static {
+        nextcloud_circuit_failure_rate = new KnownKey("nextcloud_circuit_failure_rate");
+        nextcloud_circuit_failure_rate.setDefault("50");
+    }
+
+    static {
+        nextcloud_circuit_slow_call = new KnownKey("nextcloud_circuit_slow_call");
+        nextcloud_circuit_slow_call.setDefault("10000");
+    }
+
+    static {
+        nextcloud_circuit_open_duration = new KnownKey("nextcloud_circuit_open_duration");
+        nextcloud_circuit_open_duration.setDefault("30000");
+    }
+
+    static {
+        nextcloud_transfer_budget = new KnownKey("nextcloud_transfer_budget");
+        nextcloud_transfer_budget.setDefault("67108864");
+    }
+
+    static {
+        nextcloud_transfer_budget_wait = new KnownKey("nextcloud_transfer_budget_wait");
+        nextcloud_transfer_budget_wait.setDefault("5000");
+    }
+
+    static {
+        nextcloud_transfer_spill_threshold = new KnownKey("nextcloud_transfer_spill_threshold");
+        nextcloud_transfer_spill_threshold.setDefault("1048576");
+    }
+
+    static {
+        nextcloud_transfer_spill_dir = new KnownKey("nextcloud_transfer_spill_dir");
+        nextcloud_transfer_spill_dir.setDefault("");
+    }
+
+    static {
+        nextcloud_job_dir = new KnownKey("nextcloud_job_dir");
+        nextcloud_job_dir.setDefault("/opt/zimbra/data/tmp/nextcloud-jobs");
+    }
+
+    static {
+        nextcloud_job_queue_size = new KnownKey("nextcloud_job_queue_size");
+        nextcloud_job_queue_size.setDefault("200");
+    }
+
+    static {
+        nextcloud_job_workers = new KnownKey("nextcloud_job_workers");
+        nextcloud_job_workers.setDefault("4");
+    }
+
+    static {
+        nextcloud_preview_cache_dir = new KnownKey("nextcloud_preview_cache_dir");
+        nextcloud_preview_cache_dir.setDefault("/opt/zimbra/data/tmp/nextcloud-previews");
+    }
+
+    static {
+        nextcloud_preview_cache_size = new KnownKey("nextcloud_preview_cache_size");
+        nextcloud_preview_cache_size.setDefault("268435456");
+    }
+
+    static {
+        nextcloud_prefetch_count = new KnownKey("nextcloud_prefetch_count");
+        nextcloud_prefetch_count.setDefault("3");
+    }
+
+    static {
+        nextcloud_prefetch_ttl = new KnownKey("nextcloud_prefetch_ttl");
+        nextcloud_prefetch_ttl.setDefault("10000");
+    }
+
+    static {
+        nextcloud_quota_refresh = new KnownKey("nextcloud_quota_refresh");
+        nextcloud_quota_refresh.setDefault("60000");
+    }
+
+    static {
+        nextcloud_drain_bytes = new KnownKey("nextcloud_drain_bytes");
+        nextcloud_drain_bytes.setDefault("262144");
+    }
+
+    static {
+        nextcloud_drain_time = new KnownKey("nextcloud_drain_time");
+        nextcloud_drain_time.setDefault("200");
+    }
+
+    static {
+        nextcloud_slow_request = new KnownKey("nextcloud_slow_request");
+        nextcloud_slow_request.setDefault("5000");
+    }
+
+    static {
+        nextcloud_split_mail = new KnownKey("nextcloud_split_mail");
+        nextcloud_split_mail.setDefault("true");
+    }
+
+    static {
+        nextcloud_gzip_threshold = new KnownKey("nextcloud_gzip_threshold");
+        nextcloud_gzip_threshold.setDefault("1024");
+    }
+
+    static {
+        nextcloud_url = new KnownKey("nextcloud_url");
+        nextcloud_url.setDefault("");
+    }
+
     public static final int request_timeout = nextcloud_request_timeout.intValue();
 
+    //shared by all SardineImpl instances so retries and hedging behave the same for every request
+    private static final RetryPolicy retryPolicy = new DefaultRetryPolicy(nextcloud_retry_max.intValue(),
+            nextcloud_retry_backoff.longValue(), nextcloud_retry_backoff.longValue() * 10);
+    private static final HedgePolicy hedgePolicy = nextcloud_hedge_percentile.intValue() > 0
+            ? new HedgePolicy(nextcloud_hedge_percentile.intValue(), 50, 200, 8, 256) : null;
+    //downloads cancelled near their end finish reading so the TLS connection can be reused
+    private static final DrainPolicy drainPolicy = new DrainPolicy(nextcloud_drain_bytes.longValue(), nextcloud_drain_time.longValue());
+
+    //JFR events for the calls Sardine does not make, WebDAV calls are recorded by Sardine and phases by PhaseTimer
+    private static final FlightRecorderEvent OCS_EVENT = new FlightRecorderEvent("com.zimbra.nextcloud.OcsRequest", "Nextcloud OCS Request", "Nextcloud",
+            new String[]{"method", "host", "path", "status", "requestBytes", "responseBytes", "connectionTime"},
+            new Class<?>[]{String.class, String.class, String.class, int.class, long.class, long.class, long.class});
+
+    //memory used by all users together for content on its way from Zimbra to Nextcloud
+    private static final TransferBufferManager transferBuffers = new TransferBufferManager(64 * 1024, 64,
+            nextcloud_transfer_budget.longValue(), nextcloud_transfer_spill_threshold.longValue(), nextcloud_transfer_budget_wait.longValue(),
+            nextcloud_transfer_spill_dir.value().isEmpty() ? null : new File(nextcloud_transfer_spill_dir.value()));
+
+    //streams files from Nextcloud into the upload store of Zimbra, ATTACH_THREADS per request at most
+    private static final ExecutorService attachExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "nextcloud-attach");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int ATTACH_THREADS = 4;
+
+    //identical PROPFINDs in flight at the same time (double clicks, several tabs) share one request to Nextcloud
+    private static final SingleFlight<String, JSONArray> propfindFlights = new SingleFlight<>();
+
+    //previews generated by Nextcloud, identical previews requested at the same time are fetched once
+    private static final PreviewCache previewCache = new PreviewCache(new File(nextcloud_preview_cache_dir.value()),
+            nextcloud_preview_cache_size.longValue());
+    private static final SingleFlight<String, PreviewCache.Preview> previewFlights = new SingleFlight<>();
+    private static final CloseableHttpClient previewClient = newPooledClient();
+
+    //fetches mailbox content from Zimbra for every save, connections to the mailbox are kept alive between files
+    private static final PoolingHttpClientConnectionManager zimbraConnections = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+    private static final CloseableHttpClient zimbraClient = newZimbraClient();
+
+    //ETag of the last listing sent per account, folder and format, with the etag the folder had on Nextcloud,
+    //the least recently used listing is forgotten first
+    private static final int MAX_LISTING_ETAGS = 10000;
+    private static final Map<String, String[]> listingEtags = Collections.synchronizedMap(new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MAX_LISTING_ETAGS;
+        }
+    });
+    private static final Set<QName> ETAG_PROPS = Collections.singleton(new QName("DAV:", "getetag", "d"));
+
+    //quota available to users, so saves that do not fit are refused before downloading them from Zimbra
+    private static final QuotaCache quotaCache = new QuotaCache(nextcloud_quota_refresh.longValue());
+
+    //one circuit breaker per Nextcloud host, used for WebDAV as well as OCS requests
+    private static final CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry(nextcloud_circuit_failure_rate.intValue(),
+            nextcloud_circuit_slow_call.longValue(), nextcloud_circuit_open_duration.longValue(), 20, 10, 3);
+
+    //connections to Nextcloud shared by all Sardine clients, the access token is sent with every request
+    private static final PoolingHttpClientConnectionManager davConnections = newDAVConnections();
+
+    /**
+     * Creates a Sardine client that authenticates with the given OAuth access token and
+     * retries/hedges requests, fails fast on unhealthy hosts and keeps connections of cancelled downloads as configured in localconfig.
+     * The client is cheap to create, its connections come from a pool shared by all clients.
+     *
+     * @param accessToken Nextcloud OAuth access token
+     * @return Sardine client
+     */
+    public static SardineImpl newSardine(String accessToken) {
+        SardineImpl sardine = new SardineImpl(accessToken, davConnections);
+        sardine.setRetryPolicy(retryPolicy);
+        sardine.setHedgePolicy(hedgePolicy);
+        sardine.setCircuitBreakers(circuitBreakers);
+        sardine.setDrainPolicy(drainPolicy);
+        return sardine;
+    }
+
+    /**
+     * Creates the pool of WebDAV connections to Nextcloud. The connections carry no state of a user, so a connection
+     * released by one request, or drained after a cancelled download, serves the next request of any user.
+     */
+    private static PoolingHttpClientConnectionManager newDAVConnections() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(200);
+        connectionManager.setDefaultMaxPerRoute(100);
+        connectionManager.setValidateAfterInactivity(2000);
+        new IdleConnectionEvictor(connectionManager, 30, TimeUnit.SECONDS).start();
+        return connectionManager;
+    }
+
+    /**
+     * Creates a long-lived HTTP client that keeps connections to Nextcloud alive, for frequent small
+     * requests where setting up a new connection would take longer than the request itself.
+     */
+    private static CloseableHttpClient newPooledClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(100);
+        connectionManager.setDefaultMaxPerRoute(20);
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(request_timeout).setConnectionRequestTimeout(request_timeout).setSocketTimeout(request_timeout).build();
+        HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .evictIdleConnections(30, TimeUnit.SECONDS);
+        HttpProxyUtil.configureProxy(clientBuilder);
+        return clientBuilder.build();
+    }
+
+    /**
+     * Creates the long-lived HTTP client for content of the mailbox. Every request carries the auth token of the
+     * user as a cookie, so the client keeps no cookies or connection state of its own and any pooled connection
+     * can serve any user. Connections are kept alive for 30 seconds unless Zimbra asks for less.
+     */
+    private static CloseableHttpClient newZimbraClient() {
+        zimbraConnections.setMaxTotal(50);
+        //all requests go to the mailbox itself
+        zimbraConnections.setDefaultMaxPerRoute(50);
+        zimbraConnections.setValidateAfterInactivity(2000);
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(request_timeout).setConnectionRequestTimeout(request_timeout).setSocketTimeout(request_timeout).build();
+        HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(zimbraConnections)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, 30000) : 30000;
+                })
+                .disableCookieManagement()
+                .disableConnectionState()
+                .evictExpiredConnections()
+                .evictIdleConnections(30, TimeUnit.SECONDS);
+        HttpProxyUtil.configureProxy(clientBuilder);
+        return clientBuilder.build();
+    }
+
+    //saves to Nextcloud running in the background
+    private final UploadJobQueue uploadJobs = new UploadJobQueue(this, new File(nextcloud_job_dir.value()),
+            nextcloud_job_queue_size.intValue(), nextcloud_job_workers.intValue());
+
+    //listings of subfolders fetched before the user opens them
+    private final ListingPrefetcher prefetcher = new ListingPrefetcher(nextcloud_prefetch_ttl.longValue(), 2, 64);
+
+    /**
+     * Called when the handler is registered, resumes the background saves that did not finish.
+     *
+     * @param ext extension the handler belongs to
+     * @throws ServiceException
+     */
+    @Override
+    public void init(ZimbraExtension ext) throws ServiceException {
+        super.init(ext);
+        uploadJobs.start();
+        previewCache.start();
+    }
+
+    /**
+     * Called when the handler is unregistered, unfinished background saves are resumed on the next start.
+     */
+    @Override
+    public void destroy() {
+        uploadJobs.stop();
+        prefetcher.shutdown();
+        super.destroy();
+    }
+
+    /**
+     * The path under which the handler is registered for an extension.
+     *
+     * @return path
+     */
+    @Override
+    public String getPath() {
+        return "/nextcloud";
+    }
+
+    /**
+     * Processes HTTP GET requests.
+     *
+     * @param req  request message
+     * @param resp response message
+     * @throws java.io.IOException
+     * @throws javax.servlet.ServletException
+     */
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        if (req.getParameter("stats") != null) {
+            //runtime statistics for monitoring, only for admins
+            final AuthToken authToken = AuthUtil.getAuthTokenFromHttpReq(req, resp, true, true);
+            if (authToken == null || !authToken.isAdmin()) {
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            resp.getOutputStream().print(stats().toString());
+            return;
+        }
+        if (req.getParameter("preview") != null) {
+            //can be used as the src of an img element, authenticated by the ZM_AUTH_TOKEN cookie
+            final AuthToken authToken = AuthUtil.getAuthTokenFromHttpReq(req, resp, false, true);
+            if (authToken == null) {
+                resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            //any page can embed such an img, so the access token is only sent to the Nextcloud configured by the admin
+            String nextcloudURL = nextcloud_url.value().trim();
+            if (nextcloudURL.isEmpty()) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            try {
+                sendPreview(req, resp, authToken.getAccount(), nextcloudURL.endsWith("/") ? nextcloudURL : nextcloudURL + "/", req.getParameter("fileId"),
+                        req.getParameter("etag"), parseInt(req.getParameter("x"), 64), parseInt(req.getParameter("y"), 64));
+            } catch (CircuitBreakerOpenException e) {
+                ZimbraLog.extensions.info(e.getMessage());
+                sendUnavailable(resp, e);
+            } catch (Exception e) {
+                ZimbraLog.extensions.info(e.getMessage());
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return;
+        }
+        resp.getOutputStream().print("com.zimbra.nextcloud is installed.");
+    }
+
+    /**
+     * Runtime statistics exposed to admins via GET /service/extension/nextcloud?stats
+     *
+     * @return statistics as JSON
+     */
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        try {
+            JSONObject breakers = new JSONObject();
+            for (CircuitBreaker breaker : circuitBreakers.getAll()) {
+                JSONObject breakerStats = new JSONObject();
+                breakerStats.put("state", breaker.getState().name());
+                breakerStats.put("failureRate", breaker.getFailureRate());
+                breakerStats.put("slowCallRate", breaker.getSlowCallRate());
+                breakerStats.put("rejectedCalls", breaker.getRejectedCalls());
+                breakers.put(breaker.getHost(), breakerStats);
+            }
+            stats.put("circuitBreakers", breakers);
+
+            JSONObject transfers = new JSONObject();
+            transfers.put("inFlightBytes", transferBuffers.getInFlight());
+            transfers.put("budgetBytes", transferBuffers.getBudget());
+            transfers.put("pooledBuffers", transferBuffers.getPooledBuffers());
+            transfers.put("spilled", transferBuffers.getSpilled());
+            transfers.put("rejected", transferBuffers.getRejected());
+            stats.put("transferBuffers", transfers);
+            stats.put("pendingUploadJobs", uploadJobs.getPending());
+
+            JSONObject previews = new JSONObject();
+            previews.put("entries", previewCache.getEntries());
+            previews.put("bytes", previewCache.getSize());
+            previews.put("maxBytes", previewCache.getMaxSize());
+            previews.put("hits", previewCache.getHits());
+            previews.put("misses", previewCache.getMisses());
+            previews.put("evictions", previewCache.getEvictions());
+            stats.put("previewCache", previews);
+
+            JSONObject prefetch = new JSONObject();
+            prefetch.put("cached", prefetcher.getCached());
+            prefetch.put("prefetched", prefetcher.getPrefetched());
+            prefetch.put("hits", prefetcher.getHits());
+            prefetch.put("cancelled", prefetcher.getCancelled());
+            prefetch.put("skipped", prefetcher.getSkipped());
+            stats.put("prefetch", prefetch);
+
+            JSONObject quota = new JSONObject();
+            quota.put("cached", quotaCache.getCached());
+            quota.put("rejected", quotaCache.getRejected());
+            stats.put("quota", quota);
+
+            JSONObject connections = new JSONObject();
+            connections.put("reused", drainPolicy.getReused());
+            connections.put("aborted", drainPolicy.getAborted());
+            connections.put("drainedBytes", drainPolicy.getDrainedBytes());
+            PoolStats davPool = davConnections.getTotalStats();
+            connections.put("leased", davPool.getLeased());
+            connections.put("available", davPool.getAvailable());
+            connections.put("pending", davPool.getPending());
+            stats.put("connections", connections);
+
+            PoolStats pool = zimbraConnections.getTotalStats();
+            JSONObject zimbra = new JSONObject();
+            zimbra.put("leased", pool.getLeased());
+            zimbra.put("available", pool.getAvailable());
+            zimbra.put("pending", pool.getPending());
+            zimbra.put("max", pool.getMax());
+            stats.put("zimbraConnections", zimbra);
+        } catch (Exception e) {
+            ZimbraLog.extensions.info(e.getMessage());
+        }
+        return stats;
+    }
+
+    /**
+     * Processes HTTP POST requests. The time spent in every phase is sent in the Server-Timing header and requests
+     * slower than nextcloud_slow_request are logged with their phases.
+     *
+     * @param req  request message
+     * @param resp response message
+     * @throws java.io.IOException
+     * @throws javax.servlet.ServletException
+     */
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException, ServletException {
+        PhaseTimer timer = PhaseTimer.begin();
+        ServerTimingResponse timedResp = new ServerTimingResponse(resp, timer);
+        try {
+            handlePost(req, timedResp);
+        } finally {
+            timer.end();
+            long threshold = nextcloud_slow_request.longValue();
+            if (threshold > 0 && timer.getElapsedMillis() >= threshold) {
+                ZimbraLog.extensions.warn("Slow Nextcloud request status=%d %s", resp.getStatus(), timer);
+            }
+        }
+    }
+
+    private void handlePost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException, ServletException {
+        Account account = null;
+        String accessToken = null;
+        Server server = null;
+
+        //all authentication is done by AuthUtil.getAuthTokenFromHttpReq, returns null if unauthorized
+        final AuthToken authToken = AuthUtil.getAuthTokenFromHttpReq(req, resp, false, true);
+        if (authToken != null) {
+            try {
+                account = authToken.getAccount();
+                PhaseTimer.Phase tokenPhase = PhaseTimer.start("tokenRefresh");
+                try {
+                    accessToken = NextCloudTokenHandler.refreshAccessToken(account, "nextcloud");
+                } finally {
+                    tokenPhase.close();
+                }
+                server = Provisioning.getInstance().getServer(account);
+                if ("true".equals(nextcloud_zimlet_debug.value())) {
+                    ZimbraLog.extensions.info("Refresh token :" + accessToken + " " + server.getName());
+                }
+            } catch (Exception e) {
+                ZimbraLog.extensions.info("Error fetching refresh token ", e);
+            }
+
+            try {
+                JSONObject receivedJSON = new JSONObject(IOUtils.toString(req.getPart("jsondata").getInputStream(), "UTF-8"));
+                String action = receivedJSON.getString("nextcloudAction");
+                PhaseTimer.tag("action", action);
+                String path = receivedJSON.getString("nextcloudPath");
+                String nextcloudDAVPath = receivedJSON.getString("nextcloudDAVPath");
+
+                SardineImpl sardine = newSardine(accessToken);
+                //having to do a replace for spaces, maybe a bug in Sardine.
+                path = nextcloudDAVPath + uriEncode(path).replace("%2F", "/");
+
+                switch (action) {
+                    case "propfind":
+                        PropertyProfile propfindProfile = PropertyProfile.fromJSON(receivedJSON);
+                        String listingKey = account != null
+                                ? propfindKey(account.getId(), path, propfindProfile) + "\n" + PropertyProfile.isColumns(receivedJSON) : null;
+                        String unchangedTag = unchangedListing(req, sardine, path, listingKey);
+                        if (unchangedTag != null) {
+                            sendNotModified(resp, unchangedTag);
+                            break;
+                        }
+                        JSONArray propfindResponse;
+                        PhaseTimer.Phase propfindPhase = PhaseTimer.start("propfind");
+                        try {
+                            propfindResponse = this.propfind(account, sardine, path, propfindProfile);
+                        } finally {
+                            propfindPhase.close();
+                        }
+                        String propfindBody = PropertyProfile.isColumns(receivedJSON)
+                                ? propfindProfile.toColumns(propfindResponse).toString() : propfindResponse.toString();
+                        //the first entry is the folder itself
+                        String folderEtag = propfindResponse.length() > 0 ? propfindResponse.getJSONObject(0).optString("etag", null) : null;
+                        sendListing(req, resp, propfindBody, listingKey, folderEtag);
+                        break;
+                    case "get":
+                        //until the first byte, the download itself is streamed to the zimlet
+                        ContentLengthInputStream is;
+                        PhaseTimer.Phase getPhase = PhaseTimer.start("nextcloudGet");
+                        try {
+                            is = sardine.get(path);
+                        } finally {
+                            getPhase.close();
+                        }
+                        Header[] originalHeadersFromNc = is.getResponse().getAllHeaders();
+                        for (int n = 0; n < originalHeadersFromNc.length; n++) {
+                            Header header = originalHeadersFromNc[n];
+                            if ("Content-Type".equals(header.getName())) {
+                                resp.setHeader("Content-Type", header.getValue());
+                            }
+                            if ("Content-Disposition".equals(header.getName())) {
+                                resp.setHeader("Content-Disposition", header.getValue());
+                            }
+                        }
+                        // can be used from Java 9 and up, since Zimbra is compiling at level 8 ATM this cannot be used.
+                        //is.transferTo(resp.getOutputStream());
+                        IOUtils.copy(is, resp.getOutputStream());
+                        is.close();
+                        break;
+                    case "put":
+                        String name = receivedJSON.getString("nextcloudFilename");
+                        ZimbraLog.extensions.info("PUT action");
+                        //having to do a replace for spaces, maybe a bug in Sardine.
+                        name = uriEncode(name).replace("%2F", "/");
+                        if (receivedJSON.optBoolean("async")) {
+                            //save in the background, the zimlet polls the jobStatus action for the result
+                            resp.setContentType("application/json");
+                            resp.setCharacterEncoding("UTF-8");
+                            try {
+                                UploadJob job = uploadJobs.submit(account, path, name, receivedJSON);
+                                resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+                                resp.getOutputStream().print(job.toStatusJSON().toString());
+                            } catch (UploadJobQueue.QueueFullException e) {
+                                resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                                JSONObject error = new JSONObject();
+                                error.put("statuscode", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                                error.put("message", e.getMessage());
+                                resp.getOutputStream().print(error.toString());
+                            }
+                            break;
+                        }
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        try {
+                            UploadJob putJob = new UploadJob(account.getId(), path, name, receivedJSON);
+                            boolean saved = fetchMail(req, authToken, accessToken, path, name, receivedJSON, server, putJob);
+                            resp.setStatus(saved ? 200 : 500);
+                            //etag and fileId of every saved file
+                            receivedJSON.put("results", putJob.toStatusJSON().getJSONArray("results"));
+                            writeJSON(req, resp, receivedJSON.toString());
+                        } catch (QuotaExceededException e) {
+                            sendQuotaExceeded(resp, e);
+                        }
+                        break;
+                    case "upload":
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        try {
+                            String folder = path.endsWith("/") ? path : path + "/";
+                            UploadJob uploadJob = new UploadJob(account.getId(), folder, "", receivedJSON);
+                            boolean uploaded = upload(req, uploadJob, sardine, folder);
+                            resp.setStatus(uploaded ? 200 : 500);
+                            receivedJSON.put("results", uploadJob.toStatusJSON().getJSONArray("results"));
+                            writeJSON(req, resp, receivedJSON.toString());
+                        } catch (QuotaExceededException e) {
+                            sendQuotaExceeded(resp, e);
+                        }
+                        break;
+                    case "attach":
+                        JSONArray attached;
+                        PhaseTimer.Phase attachPhase = PhaseTimer.start("attach");
+                        try {
+                            attached = attach(account, sardine, nextcloudDAVPath, receivedJSON);
+                        } finally {
+                            attachPhase.close();
+                        }
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        writeJSON(req, resp, new JSONObject().put("attachments", attached).toString());
+                        break;
+                    case "list":
+                        JSONObject listResponse;
+                        PhaseTimer.Phase listPhase = PhaseTimer.start("list");
+                        try {
+                            listResponse = list(account, sardine, nextcloudDAVPath, receivedJSON.getString("nextcloudPath"), receivedJSON,
+                                    PropertyProfile.fromJSON(receivedJSON));
+                        } finally {
+                            listPhase.close();
+                        }
+                        //pages come from a SEARCH, there is no cheaper check than running it again
+                        sendListing(req, resp, listResponse.toString(), null, null);
+                        break;
+                    case "search":
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        try (OutputStream out = compressedOutputStream(req, resp, -1)) {
+                            search(account, sardine, nextcloudDAVPath, receivedJSON.getString("nextcloudPath"), receivedJSON,
+                                    PropertyProfile.fromJSON(receivedJSON), out);
+                        }
+                        break;
+                    case "preview":
+                        sendPreview(req, resp, account, getNextcloudURL(nextcloudDAVPath), receivedJSON.getString("fileId"), receivedJSON.getString("etag"),
+                                receivedJSON.optInt("x", 64), receivedJSON.optInt("y", 64));
+                        break;
+                    case "jobStatus":
+                        UploadJob job = uploadJobs.get(account, receivedJSON.getString("jobId"));
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        if (job == null) {
+                            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                            resp.getOutputStream().print("{\"statuscode\":404,\"message\":\"Job not found\"}");
+                        } else {
+                            writeJSON(req, resp, job.toStatusJSON().toString());
+                        }
+                        break;
+                    case "createShare":
+                        String OCSPath = receivedJSON.getString("OCSPath");
+                        String shareType = receivedJSON.getString("shareType");
+                        String password = receivedJSON.getString("password");
+                        String expiryDate = receivedJSON.getString("expiryDate");
+                        path = uriEncode(receivedJSON.getString("nextcloudPath")).replace("%2F", "/");
+                        //status is set from within createShare method, before the body so the Server-Timing header includes the OCS calls
+                        String shareResponse = createShare(accessToken, OCSPath, path, shareType, password, expiryDate, resp);
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        resp.getOutputStream().print(shareResponse);
+                        break;
+                    case "createTalkConv":
+                        JSONObject body = receivedJSON.getJSONObject("body");
+                        String talkResponse = doPostRequestToNextcloud(accessToken, body, receivedJSON.getString("NextcloudApiURL"));
+                        resp.setContentType("application/json");
+                        resp.setCharacterEncoding("UTF-8");
+                        resp.getOutputStream().print(talkResponse);
+                        break;
+                    default:
+                        resp.getOutputStream().print("com.zimbra.nextcloud is installed.");
+                        return;
+                }
+
+            } catch (CircuitBreakerOpenException e) {
+                ZimbraLog.extensions.info(e.getMessage());
+                sendUnavailable(resp, e);
+            } catch (
+                    Exception e) {
+                ZimbraLog.extensions.info(e.getMessage());
+            }
+        } else {
+            ZimbraLog.extensions.info("Nextcloud extension received a POST, but AuthToken was invalid.");
+        }
+    }
+
+    /**
+     * Responds with 507 Insufficient Storage, as Nextcloud would respond to the upload, and a JSON body telling
+     * the zimlet how much space is missing.
+     */
+    private void sendQuotaExceeded(HttpServletResponse resp, QuotaExceededException e) throws Exception {
+        resp.setStatus(507);
+        JSONObject error = new JSONObject();
+        error.put("statuscode", 507);
+        error.put("message", e.getMessage());
+        error.put("required", e.getRequired());
+        error.put("available", e.getAvailable());
+        resp.getOutputStream().print(error.toString());
+    }
+
+    /**
+     * Writes a JSON response body, compressed when it is larger than nextcloud_gzip_threshold and the browser
+     * accepts gzip. The content type is set by the caller.
+     */
+    private void writeJSON(HttpServletRequest req, HttpServletResponse resp, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = compressedOutputStream(req, resp, body.length)) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @param length length of the body, -1 when not known, such bodies are always compressed if the browser accepts it,
+     *               from the first byte written so an error before that can still be sent uncompressed
+     * @return the output stream of the response, or a gzip stream writing to it that must be closed to complete the body
+     */
+    private OutputStream compressedOutputStream(HttpServletRequest req, HttpServletResponse resp, long length) throws IOException {
+        long threshold = nextcloud_gzip_threshold.longValue();
+        resp.addHeader("Vary", "Accept-Encoding");
+        if (threshold <= 0 || (length >= 0 && length < threshold) || !acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            if (length >= 0) {
+                resp.setContentLength((int) length);
+            }
+            return resp.getOutputStream();
+        }
+        if (length >= 0) {
+            resp.setHeader("Content-Encoding", "gzip");
+            return new GZIPOutputStream(resp.getOutputStream(), 8192);
+        }
+        return new OutputStream() {
+            private OutputStream out;
+
+            private OutputStream out() throws IOException {
+                if (out == null) {
+                    resp.setHeader("Content-Encoding", "gzip");
+                    out = new GZIPOutputStream(resp.getOutputStream(), 8192);
+                }
+                return out;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out().write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (out != null) {
+                    out.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.trim().split("\\s*;\\s*");
+            if ("gzip".equalsIgnoreCase(params[0]) || "x-gzip".equalsIgnoreCase(params[0])) {
+                //gzip;q=0 refuses gzip
+                return params.length < 2 || !params[1].matches("(?i)q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a folder listing with an ETag of its body, or 304 when the zimlet has that listing already. The ETag
+     * is weak as the same listing is sent compressed or not.
+     *
+     * @param key        identifies the folder, account and format for later revalidation, null for listings that
+     *                   cannot be revalidated without listing them again
+     * @param folderEtag etag of the folder on Nextcloud when it was listed
+     */
+    private void sendListing(HttpServletRequest req, HttpServletResponse resp, String body, String key, String folderEtag) throws IOException {
+        String tag = "W/\"" + Hashes.sha256(body) + "\"";
+        if (key != null && folderEtag != null) {
+            listingEtags.put(key, new String[]{folderEtag, tag});
+        }
+        if (etagMatches(req.getHeader("If-None-Match"), tag)) {
+            sendNotModified(resp, tag);
+            return;
+        }
+        resp.setHeader("ETag", tag);
+        resp.setHeader("Cache-Control", "private, no-cache");
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        writeJSON(req, resp, body);
+    }
+
+    private void sendNotModified(HttpServletResponse resp, String tag) throws IOException {
+        resp.setHeader("Vary", "Accept-Encoding");
+        resp.setHeader("ETag", tag);
+        resp.setHeader("Cache-Control", "private, no-cache");
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        //sets the Server-Timing header, there is no body
+        resp.flushBuffer();
+    }
+
+    /**
+     * Checks if the listing the zimlet sent in If-None-Match is still current with a Depth: 0 PROPFIND of the folder
+     * alone, Nextcloud changes the etag of a folder whenever a file or folder in it changes. Without a listing
+     * sent earlier by this mailbox server the folder has to be listed.
+     *
+     * @param key identifies the folder, account and format of the listing, may be null
+     * @return ETag of the listing in If-None-Match if it is still current, otherwise null
+     */
+    private String unchangedListing(HttpServletRequest req, SardineImpl sardine, String path, String key) {
+        String[] sent = key != null ? listingEtags.get(key) : null;
+        if (sent == null || !etagMatches(req.getHeader("If-None-Match"), sent[1])) {
+            return null;
+        }
+        PhaseTimer.Phase phase = PhaseTimer.start("revalidate");
+        try {
+            List<DavResource> folder = sardine.propfind(path, 0, ETAG_PROPS);
+            return !folder.isEmpty() && sent[0].equals(folder.get(0).getEtag()) ? sent[1] : null;
+        } catch (Exception e) {
+            //listing the folder reports the error
+            return null;
+        } finally {
+            phase.close();
+        }
+    }
+
+    /**
+     * Responds with 503 and a JSON body in the format of the other actions when Nextcloud is considered
+     * unhealthy, so the zimlet can tell the user right away instead of waiting for a timeout.
+     */
+    private void sendUnavailable(HttpServletResponse resp, CircuitBreakerOpenException e) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setHeader("Retry-After", Long.toString(Math.max(1, e.getRetryAfter() / 1000)));
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        JSONObject error = new JSONObject();
+        try {
+            error.put("statuscode", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            error.put("message", "Nextcloud is temporarily unavailable, please try again later.");
+            error.put("host", e.getHost());
+            error.put("retryAfter", e.getRetryAfter());
+        } catch (Exception ex) {
+            ZimbraLog.extensions.info(ex.getMessage());
+        }
+        resp.getOutputStream().print(error.toString());
+    }
+
+    public boolean fetchMail(HttpServletRequest req, AuthToken authToken, String
+            accessToken, String Path, String fileName, JSONObject mailObject, Server server) throws CircuitBreakerOpenException, QuotaExceededException {
+        try {
+            return fetchMail(req, authToken, accessToken, Path, fileName, mailObject, server, new UploadJob(authToken.getAccountId(), Path, fileName, mailObject));
+        } catch (CircuitBreakerOpenException | QuotaExceededException e) {
+            throw e;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Fetches the email and/or attachments from Zimbra and uploads them to Nextcloud, recording the result of
+     * every file in the job. Files the job already has uploaded are skipped, a failed file does not stop
+     * the others.
+     *
+     * @param req the request of the zimlet, null when run in the background
+     * @return <code>true</code> if all files were uploaded
+     * @throws QuotaExceededException when the sizes sent by the zimlet show the files do not fit in the quota,
+     *                                checked before anything is transferred
+     */
+    public boolean fetchMail(HttpServletRequest req, AuthToken authToken, String
+            accessToken, String Path, String fileName, JSONObject mailObject, Server server, UploadJob job) throws CircuitBreakerOpenException, QuotaExceededException {
+        try {
+            boolean success = true;
+            if (req != null) {
+                ZimbraLog.extensions.info("req.getServerName(): " + req.getServerName() + ", server.getName():" + server.getName());
+            }
+            ZimbraLog.extensions.info("Local config nextcloud_zimlet_zimbra_hostname_override: " + nextcloud_zimlet_zimbra_hostname_override.value());
+
+            JSONArray attachments = null;
+            try {
+                attachments = mailObject.getJSONArray("attachments");
+            } catch (Exception e) {
+                ZimbraLog.extensions.errorQuietly("Attachments not a JSON object, possibly no attachments", e);
+            }
+            //the prefetched listing of the folder would miss the saved files
+            prefetcher.invalidate("\n" + Path + "\n");
+            boolean skipMail = "skip".equals(mailObject.getString("id"));
+
+            //sizes are optional, files of unknown size are checked once Zimbra sends their Content-Length
+            long required = 0;
+            if (!skipMail && !job.isDone(fileName + ".eml")) {
+                required += mailObject.optLong("size", 0);
+            }
+            if (attachments != null) {
+                for (int i = 0; i < attachments.length(); i++) {
+                    JSONObject attachment = attachments.getJSONObject(i);
+                    if (!job.isDone(attachmentFileName(fileName, attachment, skipMail))) {
+                        required += attachment.optLong("size", 0);
+                    }
+                }
+            }
+            try (PhaseTimer.Phase phase = PhaseTimer.start("quotaCheck")) {
+                phase.setBytes(required);
+                quotaCache.check(job.getAccountId(), Path, newSardine(accessToken), required);
+            }
+
+            if (mailObject.optBoolean("bundle")) {
+                job.setTotal(1);
+                return saveBundle(job, fileName + ".zip", mailObject, skipMail, attachments, server, authToken, accessToken, Path + fileName + ".zip");
+            }
+            job.setTotal((skipMail ? 0 : 1) + (attachments != null ? attachments.length() : 0));
+
+            if (!skipMail) {
+                String path = "/service/home/~/?auth=co&id=" + mailObject.getString("id") + "&disp=a";
+                Map<String, String> parts = splitParts(job, fileName, mailObject, attachments);
+                if (parts.isEmpty()) {
+                    success &= saveFile(job, fileName + ".eml", getZimbraURL(server, path), authToken, accessToken, Path + fileName + ".eml");
+                } else {
+                    success &= saveSplit(job, fileName + ".eml", parts, getZimbraURL(server, path), authToken, accessToken, Path);
+                }
+            }
+
+            //fetch and upload attachments, those saved from the email already are skipped
+            if (attachments != null) {
+                for (int i = 0; i < attachments.length(); i++) {
+                    JSONObject attachment = attachments.getJSONObject(i);
+                    String path = "/" + attachment.getString("url") + "&disp=a";
+                    String attachmentFileName = attachmentFileName(fileName, attachment, skipMail);
+                    success &= saveFile(job, attachmentFileName, getZimbraURL(server, path), authToken, accessToken, Path + attachmentFileName);
+                }
+            }
+            return success;
+        } catch (CircuitBreakerOpenException | QuotaExceededException e) {
+            throw e;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            if ("true".equals(nextcloud_zimlet_debug.value())) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    private String attachmentFileName(String fileName, JSONObject attachment, boolean skipMail) throws Exception {
+        //having to do a replacement for spaces, maybe a bug in Sardine.
+        String attachmentFileName = uriEncode(attachment.getString("filename")).replace("%2F", "/");
+        if (!skipMail) {
+            attachmentFileName = fileName + '-' + attachmentFileName;
+        }
+        return attachmentFileName;
+    }
+
+    private static final Pattern PART_URL = Pattern.compile("[?&]id=([^&]+)&(?:.*&)?part=([0-9.]+)(&|$)");
+
+    /**
+     * Selects the attachments that can be taken from the email instead of being downloaded from Zimbra again:
+     * parts of the email itself, identified by their part number, that the job has not uploaded yet.
+     *
+     * @return file names of the attachments by part number, empty when the email is saved on its own
+     */
+    private Map<String, String> splitParts(UploadJob job, String fileName, JSONObject mailObject, JSONArray attachments) throws Exception {
+        Map<String, String> parts = new LinkedHashMap<>();
+        if (attachments == null || !"true".equals(nextcloud_split_mail.value())) {
+            return parts;
+        }
+        for (int i = 0; i < attachments.length(); i++) {
+            JSONObject attachment = attachments.getJSONObject(i);
+            Matcher url = PART_URL.matcher(attachment.getString("url"));
+            String name = attachmentFileName(fileName, attachment, false);
+            if (url.find() && url.group(1).equals(mailObject.getString("id")) && !job.isDone(name)) {
+                parts.put(url.group(2), name);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Fetches the email from Zimbra once, uploads it to Nextcloud and uploads the attachments decoded from the
+     * same content. The email is buffered anyway to upload it with a Content-Length, so the attachments are read
+     * from the buffer, which halves what is fetched from Zimbra. Attachments that are not found in the email, or
+     * fail, are left for the caller to fetch from Zimbra one by one.
+     *
+     * @param name  name of the email in the job results
+     * @param parts file names of the attachments by part number
+     * @param uri   URL of the email on Zimbra
+     * @param Path  URL of the folder on Nextcloud
+     * @return <code>true</code> if the email was uploaded
+     */
+    private boolean saveSplit(UploadJob job, String name, Map<String, String> parts, String uri, AuthToken authToken, String accessToken,
+                              String Path) throws CircuitBreakerOpenException {
+        CloseableHttpResponse response;
+        try {
+            try (PhaseTimer.Phase phase = PhaseTimer.start("zimbraFetch")) {
+                response = fetchFromZimbra(uri, authToken);
+                phase.setBytes(response.getEntity().getContentLength());
+            }
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            if (job.isDone(name)) {
+                //the attachments are fetched separately
+                return true;
+            }
+            job.fileFailed(name, e.getMessage());
+            return false;
+        }
+        //closing the response before its content is read aborts the download from Zimbra
+        try (CloseableHttpResponse fetched = response) {
+            SardineImpl sardine = newSardine(accessToken);
+            quotaCache.check(job.getAccountId(), Path, sardine, job.isDone(name) ? 0 : fetched.getEntity().getContentLength());
+            HttpEntity entity = fetched.getEntity();
+            boolean success = true;
+            try (InputStream in = entity.getContent();
+                 TransferBufferManager.Payload payload = transferBuffers.buffer(in, entity.getContentLength())) {
+                if (!job.isDone(name)) {
+                    try (PhaseTimer.Phase phase = PhaseTimer.start("nextcloudPut")) {
+                        phase.setBytes(payload.getLength());
+                        DavPutResult result = sardine.put(Path + name, payload.toEntity(null), null, true, ifMatch(job, name), ifNoneMatch(job));
+                        fileDone(job, name, payload.getLength(), result);
+                        quotaCache.consumed(job.getAccountId(), Path, payload.getLength());
+                    } catch (CircuitBreakerOpenException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        ZimbraLog.extensions.info("Error : ", e.getMessage());
+                        job.fileFailed(name, e.getMessage());
+                        success = false;
+                    }
+                }
+
+                try (InputStream message = payload.getSharedInputStream();
+                     PhaseTimer.Phase phase = PhaseTimer.start("mimeSplit")) {
+                    phase.setBytes(payload.getLength());
+                    //parsed the way Zimbra does, so the part numbers of the attachment URLs select the same parts
+                    MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession(), message);
+                    for (Map.Entry<String, String> entry : parts.entrySet()) {
+                        String partName = entry.getValue();
+                        try {
+                            MimePart mp = Mime.getMimePart(mm, entry.getKey());
+                            if (mp == null) {
+                                continue;
+                            }
+                            try (InputStream content = mp.getInputStream();
+                                 TransferBufferManager.Payload part = transferBuffers.buffer(content, -1)) {
+                                quotaCache.check(job.getAccountId(), Path, sardine, part.getLength());
+                                try (PhaseTimer.Phase put = PhaseTimer.start("nextcloudPut")) {
+                                    put.setBytes(part.getLength());
+                                    DavPutResult result = sardine.put(Path + partName, part.toEntity(null), null, true, ifMatch(job, partName), ifNoneMatch(job));
+                                    fileDone(job, partName, part.getLength(), result);
+                                }
+                                quotaCache.consumed(job.getAccountId(), Path, part.getLength());
+                            }
+                        } catch (CircuitBreakerOpenException | QuotaExceededException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            ZimbraLog.extensions.info("Could not save part %s from the email, fetching it separately: %s", entry.getKey(), e.getMessage());
+                        }
+                    }
+                } catch (CircuitBreakerOpenException e) {
+                    throw e;
+                } catch (Exception e) {
+                    //the attachments not saved yet are fetched separately, and fail there when over quota
+                    ZimbraLog.extensions.info("Could not split the email: %s", e.getMessage());
+                }
+            }
+            return success;
+        } catch (CircuitBreakerOpenException e) {
+            throw e;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            if ("true".equals(nextcloud_zimlet_debug.value())) {
+                e.printStackTrace();
+            }
+            job.fileFailed(name, e.getMessage());
+            return false;
+        }
+    }
+
+    private String getZimbraURL(Server server, String path) throws Exception {
+        if (nextcloud_zimlet_zimbra_hostname_override.value() != null && !nextcloud_zimlet_zimbra_hostname_override.value().isEmpty()) {
+            return nextcloud_zimlet_zimbra_hostname_override.value() + path.replaceAll("//", "/");
+        } else {
+            return URLUtil.getServiceURL(server, path, true);
+        }
+    }
+
+    /**
+     * Fetches content of the mailbox from Zimbra as the user, with the client shared by all saves so the
+     * connections to the mailbox are reused between files.
+     *
+     * @param uri URL of the content on Zimbra
+     * @return the response, to be closed when done, which returns the connection to the pool once the content is read
+     * @throws HttpResponseException when Zimbra does not send the content, the connection is released already
+     */
+    private CloseableHttpResponse fetchFromZimbra(String uri, AuthToken authToken) throws Exception {
+        ZimbraLog.extensions.info(uri);
+        HttpGet get = new HttpGet(uri);
+        get.addHeader("Cookie", "ZM_AUTH_TOKEN=" + authToken.getEncoded() + ";");
+        CloseableHttpResponse response = zimbraClient.execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 300) {
+            //error pages are small, reading them keeps the connection
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            throw new HttpResponseException(status, "Could not fetch " + get.getURI().getPath() + " from Zimbra: " + response.getStatusLine().getReasonPhrase());
+        }
+        return response;
+    }
+
+    /**
+     * Fetches one file from Zimbra and uploads it to Nextcloud, unless the job already did so.
+     *
+     * @param name name of the file in the job results
+     * @param uri  URL of the content on Zimbra
+     * @param url  URL of the file on Nextcloud
+     * @return <code>true</code> if the file was uploaded
+     */
+    private boolean saveFile(UploadJob job, String name, String uri, AuthToken authToken, String accessToken, String url) throws CircuitBreakerOpenException {
+        if (job.isDone(name)) {
+            return true;
+        }
+        try {
+            CloseableHttpResponse response;
+            try (PhaseTimer.Phase phase = PhaseTimer.start("zimbraFetch")) {
+                response = fetchFromZimbra(uri, authToken);
+                phase.setBytes(response.getEntity().getContentLength());
+            }
+
+            //closing the response before its content is read aborts the download from Zimbra
+            try (CloseableHttpResponse fetched = response) {
+                //avoid 401 errors
+                SardineImpl sardine = newSardine(accessToken);
+                String folder = url.substring(0, url.lastIndexOf('/') + 1);
+                quotaCache.check(job.getAccountId(), folder, sardine, fetched.getEntity().getContentLength());
+                JSONObject result;
+                try (PhaseTimer.Phase phase = PhaseTimer.start("nextcloudPut")) {
+                    result = putBuffered(sardine, url, fetched, job, name);
+                    phase.setBytes(result.getLong("bytes"));
+                }
+                quotaCache.consumed(job.getAccountId(), folder, result.getLong("bytes"));
+            }
+            return true;
+        } catch (CircuitBreakerOpenException e) {
+            throw e;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            if ("true".equals(nextcloud_zimlet_debug.value())) {
+                e.printStackTrace();
+            }
+            job.fileFailed(name, e.getMessage());
+            return false;
+        }
+    }
+
+    //to-do: check if this breaks WebDAV Servers that do not implement this, aka Alfresco,
+    //if it breaks, make it configurable
+    private static final Set<QName> PROPFIND_PROPS = new LinkedHashSet<QName>();
+
+    static {
+        PROPFIND_PROPS.add(new QName("http://owncloud.org/ns", "fileid", "oc"));
+        PROPFIND_PROPS.add(new QName("DAV:", "getcontentlength", "d"));
+        PROPFIND_PROPS.add(new QName("DAV:", "getlastmodified", "d"));
+        PROPFIND_PROPS.add(new QName("DAV:", "getcontenttype", "d"));
+        PROPFIND_PROPS.add(new QName("DAV:", "resourcetype", "d"));
+        //used for previews and conditional saves
+        PROPFIND_PROPS.add(new QName("DAV:", "getetag", "d"));
+    }
+
+    //SEARCH returns only the properties selected, so include the name as well
+    private static final Set<QName> SEARCH_PROPS = new LinkedHashSet<QName>(PROPFIND_PROPS);
+
+    static {
+        SEARCH_PROPS.add(DavSearchQuery.DISPLAYNAME);
+    }
+
+    //Nextcloud user id of accounts, needed for the SEARCH scope
+    private static final ConcurrentMap<String, String> nextcloudUserIds = new ConcurrentHashMap<>();
+
+    /**
+     * Buffers the email and its attachments from Zimbra within the node wide transfer budget and uploads them to
+     * Nextcloud as a single ZIP file with one PUT. The entries are stored without compression, so the size of
+     * the ZIP file is known up front and it is sent with a Content-Length, see putBuffered.
+     *
+     * @return <code>true</code> if the ZIP file was uploaded
+     */
+    private boolean saveBundle(UploadJob job, String name, JSONObject mailObject, boolean skipMail, JSONArray attachments, Server server,
+                               AuthToken authToken, String accessToken, String url) throws CircuitBreakerOpenException {
+        if (job.isDone(name)) {
+            return true;
+        }
+        try (ZipBundle bundle = new ZipBundle(transferBuffers)) {
+            Set<String> entryNames = new HashSet<>();
+            if (!skipMail) {
+                String path = "/service/home/~/?auth=co&id=" + mailObject.getString("id") + "&disp=a";
+                addZipEntry(bundle, zipEntryName(uriDecode(job.getFileName()) + ".eml", entryNames), getZimbraURL(server, path), authToken);
+            }
+            if (attachments != null) {
+                for (int i = 0; i < attachments.length(); i++) {
+                    JSONObject attachment = attachments.getJSONObject(i);
+                    addZipEntry(bundle, zipEntryName(attachment.getString("filename"), entryNames), getZimbraURL(server, "/" + attachment.getString("url") + "&disp=a"), authToken);
+                }
+            }
+            DavPutResult result;
+            try (PhaseTimer.Phase phase = PhaseTimer.start("bundle")) {
+                phase.setBytes(bundle.getLength());
+                SardineImpl sardine = newSardine(accessToken);
+                result = sardine.put(url, bundle.toEntity(), "application/zip", true, ifMatch(job, name), ifNoneMatch(job));
+            }
+            quotaCache.consumed(job.getAccountId(), url.substring(0, url.lastIndexOf('/') + 1), bundle.getLength());
+            fileDone(job, name, bundle.getLength(), result);
+            return true;
+        } catch (CircuitBreakerOpenException e) {
+            throw e;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Error : ", e.getMessage());
+            if ("true".equals(nextcloud_zimlet_debug.value())) {
+                e.printStackTrace();
+            }
+            job.fileFailed(name, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Makes a file name safe and unique as ZIP entry name. Attachments often share a name, such as image001.png,
+     * and ZipOutputStream refuses duplicate entries, so later ones are named image001 (2).png. Directories are
+     * removed so an entry cannot be extracted outside the target folder.
+     *
+     * @param used entry names of the ZIP file so far, lower case, the returned name is added
+     */
+    private static String zipEntryName(String fileName, Set<String> used) {
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1).trim();
+        if (name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+            name = "attachment";
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String unique = name;
+        //extracting on a case-insensitive file system would still overwrite entries that differ in case
+        for (int i = 2; !used.add(unique.toLowerCase(Locale.ROOT)); i++) {
+            unique = base + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    private void addZipEntry(ZipBundle bundle, String entryName, String uri, AuthToken authToken) throws Exception {
+        try (CloseableHttpResponse response = fetchFromZimbra(uri, authToken);
+             InputStream in = response.getEntity().getContent()) {
+            bundle.add(entryName, in, response.getEntity().getContentLength());
+        }
+    }
+
+    /**
+     * Buffers content fetched from Zimbra within the node wide transfer budget and uploads it to Nextcloud.
+     * <p>
+     * The upload is sent with a Content-Length from a repeatable entity, chunked uploads end up as empty files
+     * on Nextcloud deployed with FastCGI, and a repeatable entity allows the Expect-continue 417 retry.
+     * https://github.com/lookfirst/sardine/issues/310 empty file on Nextcloud
+     * https://docs.cyberduck.io/mountainduck/issues/fastcgi/#ZerobytefiletruncateissuewithNextcloudandownClouddeployedwithFastCGI
+     *
+     * @return the result of the file in the job
+     */
+    private JSONObject putBuffered(SardineImpl sardine, String url, HttpResponse response, UploadJob job, String name) throws Exception {
+        HttpEntity entity = response.getEntity();
+        try (InputStream in = entity.getContent();
+             TransferBufferManager.Payload payload = transferBuffers.buffer(in, entity.getContentLength())) {
+            DavPutResult result = sardine.put(url, payload.toEntity(null), null, true, ifMatch(job, name), ifNoneMatch(job));
+            return fileDone(job, name, payload.getLength(), result);
+        }
+    }
+
+    /**
+     * Streams the files the zimlet posted as <code>file</code> parts, next to the <code>jsondata</code> part, to a
+     * folder on Nextcloud, so uploads from the browser do not need CORS or a separate login on Nextcloud. The
+     * size of every part is sent as Content-Length, the content is not buffered by the extension. A PUT that would
+     * have to be sent again, after a connection error or a 417 response, fails that file instead of copying it.
+     * Saves can be made conditional as with the put action.
+     *
+     * @param folder WebDAV URL of the folder, ending with a slash
+     * @return <code>true</code> if all files were uploaded
+     * @throws QuotaExceededException when the files together do not fit in the quota, checked before anything is uploaded
+     */
+    private boolean upload(HttpServletRequest req, UploadJob job, SardineImpl sardine, String folder) throws Exception {
+        List<Part> files = new ArrayList<>();
+        long required = 0;
+        for (Part part : req.getParts()) {
+            if ("file".equals(part.getName())) {
+                files.add(part);
+                required += part.getSize();
+            }
+        }
+        try (PhaseTimer.Phase phase = PhaseTimer.start("quotaCheck")) {
+            phase.setBytes(required);
+            quotaCache.check(job.getAccountId(), folder, sardine, required);
+        }
+        prefetcher.invalidate("\n" + folder + "\n");
+        job.setTotal(files.size());
+
+        boolean success = true;
+        for (Part part : files) {
+            String fileName = part.getSubmittedFileName();
+            //browsers may send the local path, only the name is used
+            fileName = fileName == null ? "" : fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+            if (fileName.isEmpty()) {
+                fileName = job.getMail().optString("nextcloudFilename", "upload");
+            }
+            String name = uriEncode(fileName);
+            try (InputStream in = part.getInputStream();
+                 PhaseTimer.Phase phase = PhaseTimer.start("nextcloudPut")) {
+                phase.setBytes(part.getSize());
+                //not repeatable, neither retried nor sent again without Expect: 100-continue
+                DavPutResult result = sardine.put(folder + name, new InputStreamEntity(in, part.getSize()), part.getContentType(), true,
+                        ifMatch(job, name), ifNoneMatch(job));
+                fileDone(job, name, part.getSize(), result);
+                quotaCache.consumed(job.getAccountId(), folder, part.getSize());
+            } catch (CircuitBreakerOpenException e) {
+                throw e;
+            } catch (Exception e) {
+                ZimbraLog.extensions.info("Upload of %s failed: %s", name, e.getMessage());
+                job.fileFailed(name, e.getMessage());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Streams files from Nextcloud into the upload store of Zimbra, as if the user uploaded them in the compose view,
+     * so attaching a file from Nextcloud to a draft does not send it through the browser twice. The files are
+     * given as <code>nextcloudPaths</code>, or as <code>nextcloudPath</code> for a single file, and transferred
+     * concurrently.
+     *
+     * @return for every file, in the same order, the upload id (aid) to attach to the draft or the error
+     */
+    private JSONArray attach(Account account, SardineImpl sardine, String nextcloudDAVPath, JSONObject options) throws Exception {
+        JSONArray paths = options.optJSONArray("nextcloudPaths");
+        if (paths == null) {
+            paths = new JSONArray().put(options.getString("nextcloudPath"));
+        }
+        final JSONArray files = paths;
+        final JSONObject[] results = new JSONObject[files.length()];
+        final AtomicInteger next = new AtomicInteger();
+        //the request thread is one of the workers
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                results[i] = attachFile(account, sardine, nextcloudDAVPath, files.optString(i));
+            }
+        };
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 1; i < Math.min(ATTACH_THREADS, results.length); i++) {
+            workers.add(attachExecutor.submit(worker));
+        }
+        worker.run();
+        for (Future<?> future : workers) {
+            future.get();
+        }
+        JSONArray attached = new JSONArray();
+        for (JSONObject result : results) {
+            attached.put(result);
+        }
+        return attached;
+    }
+
+    private JSONObject attachFile(Account account, SardineImpl sardine, String nextcloudDAVPath, String path) {
+        JSONObject result = new JSONObject();
+        try {
+            result.put("nextcloudPath", path);
+            String fileName = path.substring(path.lastIndexOf('/') + 1);
+            try (ContentLengthInputStream in = sardine.get(nextcloudDAVPath + uriEncode(path).replace("%2F", "/"))) {
+                Header contentType = in.getResponse().getFirstHeader("Content-Type");
+                FileUploadServlet.Upload upload = FileUploadServlet.saveUpload(in, fileName,
+                        contentType != null ? contentType.getValue() : "application/octet-stream", account.getId());
+                result.put("aid", upload.getId());
+                result.put("filename", upload.getName());
+                result.put("contentType", upload.getContentType());
+                result.put("size", upload.getSize());
+            }
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Attaching %s failed: %s", path, e.getMessage());
+            try {
+                result.put("error", e.getMessage());
+            } catch (Exception ex) {
+                ZimbraLog.extensions.info(ex.getMessage());
+            }
+        }
+        return result;
+    }
+
     /**
-     * The path under which the handler is registered for an extension.
-     *
-     * @return path
+     * The zimlet can make saves conditional: <code>"overwrite": false</code> never replaces existing files,
+     * <code>"ifMatch": {"name": "etag"}</code> replaces a file only if it was not changed since the zimlet
+     * listed it. A failed condition fails the file with 412 Precondition Failed.
      */
-    @Override
-    public String getPath() {
-        return "/nextcloud";
+    private String ifMatch(UploadJob job, String name) throws Exception {
+        JSONObject ifMatch = job.getMail().optJSONObject("ifMatch");
+        return ifMatch != null ? ifMatch.optString(name, null) : null;
+    }
+
+    private boolean ifNoneMatch(UploadJob job) throws Exception {
+        return !job.getMail().optBoolean("overwrite", true);
     }
 
     /**
-     * Processes HTTP GET requests.
-     *
-     * @param req  request message
-     * @param resp response message
-     * @throws java.io.IOException
-     * @throws javax.servlet.ServletException
+     * Records an uploaded file in the job along with the identity Nextcloud returned for it, so the zimlet
+     * does not need to list the folder to show or share the new file.
      */
-    @Override
-    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
-        resp.getOutputStream().print("com.zimbra.nextcloud is installed.");
+    private JSONObject fileDone(UploadJob job, String name, long bytes, DavPutResult result) throws Exception {
+        Map<String, String> details = new LinkedHashMap<>();
+        details.put("etag", result.getEtag());
+        details.put("ocEtag", result.getOcEtag());
+        details.put("fileId", result.getFileId());
+        return job.fileDone(name, bytes, details);
     }
 
     /**
-     * Processes HTTP POST requests.
+     * Sends the preview of a file as generated by Nextcloud, from the preview cache when possible.
+     * <p>
+     * The fileid and etag come from a PROPFIND, a changed file gets a new etag and thereby a new cache entry,
+     * so cached previews never need to be invalidated and the browser may cache them as well. Previews are
+     * cached per account as Nextcloud checks access to the file when generating the preview only.
      *
-     * @param req  request message
-     * @param resp response message
-     * @throws java.io.IOException
-     * @throws javax.servlet.ServletException
+     * @param nextcloudURL URL of Nextcloud ending with a slash, the access token of the account is sent to it
      */
-    @Override
-    public void doPost(HttpServletRequest req, HttpServletResponse resp)
-            throws IOException, ServletException {
-        Account account = null;
-        String accessToken = null;
-        Server server = null;
+    private void sendPreview(HttpServletRequest req, HttpServletResponse resp, Account account, String nextcloudURL,
+                             String fileId, String etag, int width, int height) throws Exception {
+        if (fileId == null || etag == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final int x = Math.max(1, Math.min(1024, width));
+        final int y = Math.max(1, Math.min(1024, height));
+
+        //the cache entry and the ETag are per account, a preview cached by the browser is not shared with another account
+        final String key = Hashes.sha256(account.getId(), fileId, etag, Integer.toString(x), Integer.toString(y));
+        String tag = "\"" + key + "\"";
+        if (etagMatches(req.getHeader("If-None-Match"), tag)) {
+            resp.setHeader("ETag", tag);
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
-        //all authentication is done by AuthUtil.getAuthTokenFromHttpReq, returns null if unauthorized
-        final AuthToken authToken = AuthUtil.getAuthTokenFromHttpReq(req, resp, false, true);
-        if (authToken != null) {
+        PreviewCache.Preview preview = previewCache.get(key);
+        if (preview == null) {
+            final String previewURL = nextcloudURL
+                    + "index.php/core/preview?fileId=" + uriEncode(fileId) + "&x=" + x + "&y=" + y + "&a=1&c=" + uriEncode(etag);
+            PhaseTimer.Phase phase = PhaseTimer.start("preview");
             try {
-                account = authToken.getAccount();
-                accessToken = NextCloudTokenHandler.refreshAccessToken(account, "nextcloud");
-                server = Provisioning.getInstance().getServer(account);
-                if ("true".equals(nextcloud_zimlet_debug.value())) {
-                    ZimbraLog.extensions.info("Refresh token :" + accessToken + " " + server.getName());
-                }
-            } catch (Exception e) {
-                ZimbraLog.extensions.info("Error fetching refresh token ", e);
+                preview = previewFlights.execute(key, () -> fetchPreview(account, previewURL, key));
+            } catch (HttpResponseException e) {
+                //no preview available for this type of file, or no access to it
+                resp.sendError(e.getStatusCode());
+                return;
+            } finally {
+                phase.close();
             }
+        }
+        resp.setHeader("ETag", tag);
+        resp.setHeader("Cache-Control", "private, max-age=604800");
+        resp.setContentType(preview.getContentType());
+        resp.setContentLength(preview.getLength());
+        WritableByteChannel channel = Channels.newChannel(resp.getOutputStream());
+        ByteBuffer data = preview.getData();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
 
-            try {
-                JSONObject receivedJSON = new JSONObject(IOUtils.toString(req.getPart("jsondata").getInputStream(), "UTF-8"));
-                String action = receivedJSON.getString("nextcloudAction");
-                String path = receivedJSON.getString("nextcloudPath");
-                String nextcloudDAVPath = receivedJSON.getString("nextcloudDAVPath");
-
-                SardineImpl sardine = new SardineImpl(accessToken);
-                //having to do a replace for spaces, maybe a bug in Sardine.
-                path = nextcloudDAVPath + uriEncode(path).replace("%2F", "/");
-
-                switch (action) {
-                    case "propfind":
-                        JSONArray propfindResponse = this.propfind(sardine, path);
-                        resp.setContentType("application/json");
-                        resp.setCharacterEncoding("UTF-8");
-                        resp.getOutputStream().print(propfindResponse.toString());
-                        break;
-                    case "get":
-                        ContentLengthInputStream is = sardine.get(path);
-                        Header[] originalHeadersFromNc = is.getResponse().getAllHeaders();
-                        for (int n = 0; n < originalHeadersFromNc.length; n++) {
-                            Header header = originalHeadersFromNc[n];
-                            if ("Content-Type".equals(header.getName())) {
-                                resp.setHeader("Content-Type", header.getValue());
-                            }
-                            if ("Content-Disposition".equals(header.getName())) {
-                                resp.setHeader("Content-Disposition", header.getValue());
-                            }
-                        }
-                        // can be used from Java 9 and up, since Zimbra is compiling at level 8 ATM this cannot be used.
-                        //is.transferTo(resp.getOutputStream());
-                        IOUtils.copy(is, resp.getOutputStream());
-                        is.close();
-                        break;
-                    case "put":
-                        String name = receivedJSON.getString("nextcloudFilename");
-                        ZimbraLog.extensions.info("PUT action");
-                        //having to do a replace for spaces, maybe a bug in Sardine.
-                        name = uriEncode(name).replace("%2F", "/");
-                        resp.setContentType("application/json");
-                        resp.setCharacterEncoding("UTF-8");
-                        resp.getOutputStream().print(receivedJSON.toString());
-                        if (fetchMail(req, authToken, accessToken, path, name, receivedJSON, server)) {
-                            resp.setStatus(200);
-                        } else {
-                            resp.setStatus(500);
-                        }
-                        break;
-                    case "createShare":
-                        String OCSPath = receivedJSON.getString("OCSPath");
-                        String shareType = receivedJSON.getString("shareType");
-                        String password = receivedJSON.getString("password");
-                        String expiryDate = receivedJSON.getString("expiryDate");
-                        path = uriEncode(receivedJSON.getString("nextcloudPath")).replace("%2F", "/");
-                        resp.setContentType("application/json");
-                        resp.setCharacterEncoding("UTF-8");
-                        //status is set from within createShare method
-                        resp.getOutputStream().print(createShare(accessToken, OCSPath, path, shareType, password, expiryDate, resp));
-                        break;
-                    case "createTalkConv":
-                        JSONObject body = receivedJSON.getJSONObject("body");
-                        resp.setContentType("application/json");
-                        resp.setCharacterEncoding("UTF-8");
-                        resp.getOutputStream().print(doPostRequestToNextcloud(accessToken, body, receivedJSON.getString("NextcloudApiURL")));
-                        break;
-                    default:
-                        resp.getOutputStream().print("com.zimbra.nextcloud is installed.");
-                        return;
-                }
+    private PreviewCache.Preview fetchPreview(Account account, String previewURL, String key) throws Exception {
+        String accessToken = NextCloudTokenHandler.refreshAccessToken(account, "nextcloud");
+        HttpGet get = new HttpGet(previewURL);
+        get.addHeader("Authorization", "Bearer " + accessToken);
+        CircuitBreaker breaker = circuitBreakers.get(get.getURI().getHost());
+        breaker.acquirePermission();
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
+        try {
+            response = previewClient.execute(get);
+        } catch (IOException e) {
+            breaker.onResult(false, System.currentTimeMillis() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            //frees the probe slot of a half-open breaker
+            breaker.onIgnored();
+            throw e;
+        }
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            breaker.onResult(status < 500, System.currentTimeMillis() - start);
+            HttpEntity entity = response.getEntity();
+            if (status != HttpServletResponse.SC_OK) {
+                EntityUtils.consumeQuietly(entity);
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+            try (InputStream in = entity.getContent()) {
+                return previewCache.put(key, in, entity.getContentType() != null ? entity.getContentType().getValue() : null);
+            }
+        } finally {
+            response.close();
+        }
+    }
 
-            } catch (
-                    Exception e) {
-                ZimbraLog.extensions.info(e.getMessage());
+    /**
+     * Weak comparison of an ETag with the ETags listed in an If-None-Match header. A * is no match, the response
+     * depends on the request parameters rather than on a resource that exists or not.
+     */
+    private static boolean etagMatches(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = tag.startsWith("W/") ? tag.substring(2) : tag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (opaqueTag.equals(candidate.startsWith("W/") ? candidate.substring(2) : candidate)) {
+                return true;
             }
-        } else {
-            ZimbraLog.extensions.info("Nextcloud extension received a POST, but AuthToken was invalid.");
         }
+        return false;
     }
 
-    public boolean fetchMail(HttpServletRequest req, AuthToken authToken, String
-            accessToken, String Path, String fileName, JSONObject mailObject, Server server) {
+    private static int parseInt(String value, int defaultValue) {
         try {
-            String uri;
-            SardineImpl sardine = new SardineImpl(accessToken);
-            ZimbraLog.extensions.info("req.getServerName(): " + req.getServerName() + ", server.getName():" + server.getName());
-            ZimbraLog.extensions.info("Local config nextcloud_zimlet_zimbra_hostname_override: " + nextcloud_zimlet_zimbra_hostname_override.value());
-            if (!"skip".equals(mailObject.getString("id"))) {
-                String path = "/service/home/~/?auth=co&id=" + mailObject.getString("id") + "&disp=a";
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 
-                if (nextcloud_zimlet_zimbra_hostname_override.value() != null && !nextcloud_zimlet_zimbra_hostname_override.value().isEmpty()) {
-                    uri = nextcloud_zimlet_zimbra_hostname_override.value() + path.replaceAll("//", "/");
-                } else {
-                    uri = URLUtil.getServiceURL(server, path, true);
-                }
-                ZimbraLog.extensions.info(uri);
+    /**
+     * Perform a PROPFIND request, sharing the request with identical PROPFINDs of the same account that are
+     * already in flight. Errors are thrown to every waiting caller.
+     */
+    public JSONArray propfind(Account account, SardineImpl mSardine, String Path) throws Exception {
+        return propfind(account, mSardine, Path, null);
+    }
 
-                RequestConfig config = RequestConfig.custom().setConnectTimeout(request_timeout).setConnectionRequestTimeout(request_timeout).setSocketTimeout(request_timeout).build();
-                HttpClientBuilder clientBuilder = ZimbraHttpConnectionManager.getExternalHttpConnMgr().newHttpClient().setDefaultRequestConfig(config);
-                HttpResponse response;
-                HttpProxyUtil.configureProxy(clientBuilder);
-                HttpGet get = new HttpGet(uri);
-                get.addHeader("Cookie", "ZM_AUTH_TOKEN=" + authToken.getEncoded() + ";");
-                response = HttpClientUtil.executeMethod(clientBuilder.build(), get);
+    /**
+     * Perform a PROPFIND request for the properties of a profile, sharing the request with identical PROPFINDs
+     * of the same account that are already in flight. Errors are thrown to every waiting caller.
+     *
+     * @param profile properties to list, null for the entries as they have always been listed
+     */
+    public JSONArray propfind(Account account, SardineImpl mSardine, String Path, PropertyProfile profile) throws Exception {
+        if (account == null) {
+            return doPropfind(mSardine, Path, 1, profile);
+        }
+        //the user navigated here, prefetches for the previous folder are no longer useful
+        prefetcher.cancel(account.getId());
+        final String key = propfindKey(account.getId(), Path, profile);
+        JSONArray listing = prefetcher.take(key);
+        if (listing == null) {
+            //joins a prefetch of this folder that is already running
+            listing = propfindFlights.execute(key, () -> doPropfind(mSardine, Path, 1, profile));
+        }
+        prefetchSubfolders(account, mSardine, Path, listing, profile);
+        return listing;
+    }
 
-                //avoid 401 errors
-                sardine = new SardineImpl(accessToken);
-                //https://github.com/lookfirst/sardine/issues/310 empty file on Nextcloud
-                //https://docs.cyberduck.io/mountainduck/issues/fastcgi/#ZerobytefiletruncateissuewithNextcloudandownClouddeployedwithFastCGI
-                sardine.put(Path + fileName + ".eml", EntityUtils.toByteArray(response.getEntity()));
-            }
+    private static String propfindKey(String accountId, String Path, PropertyProfile profile) {
+        return accountId + "\n" + Path + "\n" + 1 + "\n" + (profile != null ? profile : PROPFIND_PROPS);
+    }
 
-            JSONArray attachments = null;
-            try {
-                attachments = mailObject.getJSONArray("attachments");
-            } catch (Exception e) {
-                ZimbraLog.extensions.errorQuietly("Attachments not a JSON object, possibly no attachments", e);
+    /**
+     * Queues the listings of the first subfolders of a listing for prefetching, the user is likely to open one
+     * of them next. Nothing is prefetched while the Nextcloud host is unhealthy.
+     */
+    private void prefetchSubfolders(Account account, SardineImpl mSardine, String Path, JSONArray listing, PropertyProfile profile) {
+        try {
+            int count = nextcloud_prefetch_count.intValue();
+            String matchFilter = "remote.php/webdav";
+            if (count <= 0 || !Path.contains(matchFilter)
+                    || circuitBreakers.get(new URL(Path).getHost()).getState() != CircuitBreaker.State.CLOSED) {
+                return;
             }
-
-            //fetch and upload attachments
-            if (attachments != null) {
-                for (int i = 0; i < attachments.length(); i++) {
-                    JSONObject attachment = attachments.getJSONObject(i);
-                    String path = "/" + attachment.getString("url") + "&disp=a";
-
-                    if (nextcloud_zimlet_zimbra_hostname_override.value() != null && !nextcloud_zimlet_zimbra_hostname_override.value().isEmpty()) {
-                        uri = nextcloud_zimlet_zimbra_hostname_override.value() + path.replaceAll("//", "/");
-                    } else {
-                        uri = URLUtil.getServiceURL(server, path, true);
-                    }
-                    ZimbraLog.extensions.info(uri);
-
-                    RequestConfig config = RequestConfig.custom().setConnectTimeout(request_timeout).setConnectionRequestTimeout(request_timeout).setSocketTimeout(request_timeout).build();
-                    HttpClientBuilder clientBuilder = ZimbraHttpConnectionManager.getExternalHttpConnMgr().newHttpClient().setDefaultRequestConfig(config);
-                    HttpResponse response;
-                    HttpProxyUtil.configureProxy(clientBuilder);
-                    HttpGet get = new HttpGet(uri);
-                    get.addHeader("Cookie", "ZM_AUTH_TOKEN=" + authToken.getEncoded() + ";");
-                    response = HttpClientUtil.executeMethod(clientBuilder.build(), get);
-
-                    //having to do a replacement for spaces, maybe a bug in Sardine.
-                    String attachmentFileName = uriEncode(attachment.getString("filename")).replace("%2F", "/");
-                    sardine = new SardineImpl(accessToken);
-                    if (!"skip".equals(mailObject.getString("id"))) {
-                        sardine.put(Path + fileName + '-' + attachmentFileName, EntityUtils.toByteArray(response.getEntity()));
-
-                    } else {
-                        sardine.put(Path + attachmentFileName, EntityUtils.toByteArray(response.getEntity()));
-                    }
+            String base = Path.substring(0, Path.lastIndexOf(matchFilter) + matchFilter.length());
+            Map<String, Callable<JSONArray>> subfolders = new LinkedHashMap<>();
+            //the first entry is the folder itself
+            for (int i = 1; i < listing.length() && subfolders.size() < count; i++) {
+                JSONObject entry = listing.getJSONObject(i);
+                if (!entry.getJSONArray("resourceTypes").toString().contains("{DAV:}collection")) {
+                    continue;
                 }
+                final String subfolderPath = base + uriEncode(entry.getString("href")).replace("%2F", "/");
+                final String subfolderKey = propfindKey(account.getId(), subfolderPath, profile);
+                subfolders.put(subfolderKey, () -> propfindFlights.execute(subfolderKey, () -> doPropfind(mSardine, subfolderPath, 1, profile)));
             }
-            return true;
+            prefetcher.prefetch(account.getId(), subfolders);
         } catch (Exception e) {
-            ZimbraLog.extensions.info("Error : ", e.getMessage());
-            if ("true".equals(nextcloud_zimlet_debug.value())) {
-                e.printStackTrace();
-            }
-            return false;
+            ZimbraLog.extensions.debug("Could not prefetch subfolders: " + e.getMessage());
         }
     }
 
-
     /**
      * Perform a PROPFIND request.
      * <p>
@@ -315,66 +1752,248 @@ public class Nextcloud extends ExtensionHttpHandler {
     public JSONArray propfind(SardineImpl mSardine, String Path)
             throws IOException {
         try {
-            final JSONArray arrayResponse = new JSONArray();
-            //to-do: check if this breaks WebDAV Servers that do not implement this, aka Alfresco,
-            //if it breaks, make it configurable
-            Set<QName> CustomProps = new HashSet<QName>();
-            CustomProps.add(new QName("http://owncloud.org/ns", "fileid", "oc"));
-            CustomProps.add(new QName("DAV:", "getcontentlength", "d"));
-            CustomProps.add(new QName("DAV:", "getlastmodified", "d"));
-            CustomProps.add(new QName("DAV:", "getcontenttype", "d"));
-            CustomProps.add(new QName("DAV:", "resourcetype", "d"));
-
-            List<DavResource> propfind = mSardine.propfind(
-                    Path,
-                    1,
-                    CustomProps
-            );
-
-            for (DavResource resource : propfind) {
-                JSONObject res = new JSONObject();
-                res.put("href", getDAVPath(resource.getPath()));
-                if (resource.getCreation() != null) {
-                    res.put("creation", resource.getCreation().getTime());
-                }
-                if (resource.getModified() != null) {
-                    res.put("modified", resource.getModified().getTime());
-                }
-                res.put("contentType", resource.getContentType());
-                res.put("contentLength", resource.getContentLength());
-                res.put("etag", resource.getEtag());
-                res.put("displayName", resource.getDisplayName());
-
-                JSONArray resourceTypes = new JSONArray();
-                for (QName name : resource.getResourceTypes()) {
-                    resourceTypes.put("{" + name.getNamespaceURI() + "}" + name.getLocalPart());
-                }
-                res.put("resourceTypes", resourceTypes);
-                res.put("contentLanguage", resource.getContentLanguage());
-                JSONArray supportedReports = new JSONArray();
-                for (QName name : resource.getSupportedReports()) {
-                    supportedReports.put("{" + name.getNamespaceURI() + "}" + name.getLocalPart());
-                }
-                res.put("supportedReports", supportedReports);
-                JSONObject customProps = new JSONObject();
-                for (String key : resource.getCustomProps().keySet()) {
-                    customProps.put(key, resource.getCustomProps().get(key));
-                }
-                res.put("customProps", customProps);
-                arrayResponse.put(res);
-            }
-            return arrayResponse;
+            return doPropfind(mSardine, Path, 1, null);
+        } catch (CircuitBreakerOpenException e) {
+            throw e;
         } catch (Exception e) {
             ZimbraLog.extensions.info(e.getMessage());
             return null;
         }
     }
 
+    private JSONArray doPropfind(SardineImpl mSardine, String Path, int depth, PropertyProfile profile)
+            throws Exception {
+        final JSONArray arrayResponse = new JSONArray();
+        List<DavResource> propfind = mSardine.propfind(
+                Path,
+                depth,
+                profile != null ? profile.getProperties() : PROPFIND_PROPS
+        );
+
+        for (DavResource resource : propfind) {
+            arrayResponse.put(profile != null ? profile.toJSON(resource, getDAVPath(resource.getPath())) : toJSON(resource));
+        }
+        return arrayResponse;
+    }
+
+    private JSONObject toJSON(DavResource resource) throws Exception {
+        JSONObject res = new JSONObject();
+        res.put("href", getDAVPath(resource.getPath()));
+        if (resource.getCreation() != null) {
+            res.put("creation", resource.getCreation().getTime());
+        }
+        if (resource.getModified() != null) {
+            res.put("modified", resource.getModified().getTime());
+        }
+        res.put("contentType", resource.getContentType());
+        res.put("contentLength", resource.getContentLength());
+        res.put("etag", resource.getEtag());
+        res.put("displayName", resource.getDisplayName());
+
+        JSONArray resourceTypes = new JSONArray();
+        for (QName name : resource.getResourceTypes()) {
+            resourceTypes.put("{" + name.getNamespaceURI() + "}" + name.getLocalPart());
+        }
+        res.put("resourceTypes", resourceTypes);
+        res.put("contentLanguage", resource.getContentLanguage());
+        JSONArray supportedReports = new JSONArray();
+        for (QName name : resource.getSupportedReports()) {
+            supportedReports.put("{" + name.getNamespaceURI() + "}" + name.getLocalPart());
+        }
+        res.put("supportedReports", supportedReports);
+        JSONObject customProps = new JSONObject();
+        for (String key : resource.getCustomProps().keySet()) {
+            customProps.put(key, resource.getCustomProps().get(key));
+        }
+        res.put("customProps", customProps);
+        return res;
+    }
+
     public String getDAVPath(String path) {
         String matchFilter = "remote.php/webdav";
+        if (!path.contains(matchFilter)) {
+            //SEARCH results are relative to remote.php/dav/files/<user id>
+            Matcher matcher = Pattern.compile("remote\\.php/dav/files/[^/]+").matcher(path);
+            if (matcher.find()) {
+                return path.substring(matcher.end());
+            }
+        }
         return path.substring(path.lastIndexOf(matchFilter) + matchFilter.length());
     }
 
+    /**
+     * Lists one page of a folder using a WebDAV SEARCH, so Nextcloud filters, orders and pages the entries
+     * instead of returning all of them as a PROPFIND does.
+     *
+     * @param options limit (page size), cursor (from the previous page), orderBy (name or mtime), descending,
+     *                mimeType (image/png, or image/ for all images) and namePrefix
+     * @param profile properties to list, null for the entries as they have always been listed
+     * @return the entries of the page, as columns when asked for in the options, and the cursor of the next page,
+     * null on the last page
+     */
+    public JSONObject list(Account account, SardineImpl sardine, String nextcloudDAVPath, String folder, JSONObject options,
+                           PropertyProfile profile) throws Exception {
+        int limit = Math.max(1, Math.min(1000, options.optInt("limit", 200)));
+        int offset = decodeCursor(options.optString("cursor", null));
+
+        DavSearchQuery query = new DavSearchQuery(searchScope(account, sardine, nextcloudDAVPath, folder), "1",
+                profile != null ? profile.getProperties() : SEARCH_PROPS);
+        String mimeType = options.optString("mimeType", "");
+        if (!mimeType.isEmpty()) {
+            query.like(DavSearchQuery.GETCONTENTTYPE, DavSearchQuery.escapeLike(mimeType) + (mimeType.endsWith("/") ? "%" : ""));
+        }
+        String namePrefix = options.optString("namePrefix", "");
+        if (!namePrefix.isEmpty()) {
+            query.like(DavSearchQuery.DISPLAYNAME, DavSearchQuery.escapeLike(namePrefix) + "%");
+        }
+        query.orderBy("mtime".equals(options.optString("orderBy")) ? DavSearchQuery.GETLASTMODIFIED : DavSearchQuery.DISPLAYNAME,
+                !options.optBoolean("descending"));
+        query.limit(limit, offset);
+
+        List<DavResource> resources = sardine.search(getDAVRoot(nextcloudDAVPath), query.toSearchRequest());
+        JSONArray entries = new JSONArray();
+        for (DavResource resource : resources) {
+            entries.put(profile != null ? profile.toJSON(resource, getDAVPath(resource.getPath())) : toJSON(resource));
+        }
+        JSONObject page;
+        if (PropertyProfile.isColumns(options)) {
+            page = profile.toColumns(entries);
+        } else {
+            page = new JSONObject();
+            page.put("entries", entries);
+        }
+        page.put("cursor", resources.size() < limit ? JSONObject.NULL : encodeCursor(offset + resources.size()));
+        return page;
+    }
+
+    /**
+     * Searches the files of the user below a folder using a WebDAV SEARCH, replacing a crawl of the folders
+     * by the zimlet. Results are sorted newest first and capped at a limit, every result is written as soon as
+     * it has been parsed from the response of Nextcloud.
+     *
+     * @param options name (pattern, * matches any characters, without * matches part of the name), mimeType
+     *                (pattern), modifiedSince (milliseconds since epoch), minSize and maxSize (bytes) and limit
+     * @param profile properties to list, null for the results as they have always been listed
+     * @param out     receives {"results": [...], "truncated": true if there are more results than the limit}, nothing
+     *                when the search fails before the first result
+     */
+    public void search(Account account, SardineImpl sardine, String nextcloudDAVPath, String scope, JSONObject options,
+                       PropertyProfile profile, OutputStream out) throws Exception {
+        int limit = Math.max(1, Math.min(1000, options.optInt("limit", 100)));
+
+        DavSearchQuery query = new DavSearchQuery(searchScope(account, sardine, nextcloudDAVPath, scope), "infinity",
+                profile != null ? profile.getProperties() : SEARCH_PROPS);
+        String name = options.optString("name", "");
+        if (!name.isEmpty()) {
+            query.like(DavSearchQuery.DISPLAYNAME, name.contains("*") ? likePattern(name) : "%" + DavSearchQuery.escapeLike(name) + "%");
+        }
+        String mimeType = options.optString("mimeType", "");
+        if (!mimeType.isEmpty()) {
+            query.like(DavSearchQuery.GETCONTENTTYPE, likePattern(mimeType));
+        }
+        if (options.has("modifiedSince")) {
+            //Nextcloud compares dates as seconds since epoch
+            query.greaterThanOrEqual(DavSearchQuery.GETLASTMODIFIED, Long.toString(options.getLong("modifiedSince") / 1000));
+        }
+        if (options.has("minSize")) {
+            query.greaterThanOrEqual(DavSearchQuery.SIZE, Long.toString(options.getLong("minSize")));
+        }
+        if (options.has("maxSize")) {
+            query.lessThanOrEqual(DavSearchQuery.SIZE, Long.toString(options.getLong("maxSize")));
+        }
+        query.orderBy(DavSearchQuery.GETLASTMODIFIED, false);
+        //one more than the limit tells if the results were truncated
+        query.limit(limit + 1, 0);
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        AtomicInteger count = new AtomicInteger();
+        sardine.search(getDAVRoot(nextcloudDAVPath), query.toSearchRequest(), resource -> {
+            int i = count.getAndIncrement();
+            if (i >= limit) {
+                return;
+            }
+            try {
+                //an error before the first result can still be sent as error response
+                writer.write(i == 0 ? "{\"results\":[" : ",");
+                writer.write((profile != null ? profile.toJSON(resource, getDAVPath(resource.getPath())) : toJSON(resource)).toString());
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (i % 100 == 99) {
+                writer.flush();
+            }
+        });
+        writer.write((count.get() == 0 ? "{\"results\":[" : "") + "],\"truncated\":" + (count.get() > limit) + "}");
+        writer.flush();
+    }
+
+    /**
+     * @return like pattern of a pattern of the user where * matches any characters and everything else is literal
+     */
+    private static String likePattern(String pattern) {
+        String[] literals = pattern.split("\\*", -1);
+        StringBuilder like = new StringBuilder(DavSearchQuery.escapeLike(literals[0]));
+        for (int i = 1; i < literals.length; i++) {
+            like.append('%').append(DavSearchQuery.escapeLike(literals[i]));
+        }
+        return like.toString();
+    }
+
+    private static String encodeCursor(int offset) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Integer.toString(offset).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * SEARCH is only available on the remote.php/dav endpoint, not on the remote.php/webdav endpoint used
+     * by the zimlet.
+     */
+    private String getDAVRoot(String nextcloudDAVPath) {
+        return getNextcloudURL(nextcloudDAVPath) + "remote.php/dav/";
+    }
+
+    /**
+     * URL of Nextcloud itself, e.g. https://cloud.example.com/ for https://cloud.example.com/remote.php/webdav/
+     */
+    private String getNextcloudURL(String nextcloudDAVPath) {
+        int index = nextcloudDAVPath.indexOf("remote.php");
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a Nextcloud WebDAV URL: " + nextcloudDAVPath);
+        }
+        return nextcloudDAVPath.substring(0, index);
+    }
+
+    /**
+     * @return href of a folder of the user on the remote.php/dav endpoint
+     */
+    private String searchScope(Account account, SardineImpl sardine, String nextcloudDAVPath, String folder) throws Exception {
+        String userId = nextcloudUserIds.get(account.getId());
+        if (userId == null) {
+            //the owner of the root folder is the user, the user id is not necessarily the login name
+            Set<QName> ownerId = Collections.singleton(new QName("http://owncloud.org/ns", "owner-id", "oc"));
+            List<DavResource> root = sardine.propfind(nextcloudDAVPath, 0, ownerId);
+            userId = root.isEmpty() ? null : root.get(0).getCustomProps().get("owner-id");
+            if (userId == null) {
+                throw new IOException("Could not determine Nextcloud user id");
+            }
+            nextcloudUserIds.put(account.getId(), userId);
+        }
+        String path = folder.replaceAll("^/+|/+$", "");
+        return "/files/" + uriEncode(userId) + (path.isEmpty() ? "" : "/" + uriEncode(path).replace("%2F", "/"));
+    }
+
     public String uriEncode(String dirty) {
         try {
             String clean = java.net.URLEncoder.encode(dirty, "UTF-8");
@@ -433,13 +2052,19 @@ public class Nextcloud extends ExtensionHttpHandler {
       example HTTP 400 error response: {"statuscode":400,"id":0,"message":"","url":"Could not create share. ","status":"ok","token":""}
     */
     public String createShare(String accessToken, String OCSPath, String path, String shareType, String password, String expiryDate, HttpServletResponse resp) {
+        CircuitBreaker breaker = null;
+        OcsCall ocsCall = null;
+        long start = System.currentTimeMillis();
         try {
+            breaker = circuitBreakers.get(new URL(OCSPath).getHost());
+            breaker.acquirePermission();
             final String urlParameters = "path=" + path + "&shareType=" + shareType + "&password=" + password;
 
             byte[] postData = urlParameters.getBytes(StandardCharsets.UTF_8);
             int postDataLength = postData.length;
 
             URL url = new URL(OCSPath);
+            ocsCall = new OcsCall("ocsCreateShare", "POST", url);
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
 
             conn.setDoOutput(true);
@@ -452,12 +2077,16 @@ public class Nextcloud extends ExtensionHttpHandler {
             conn.setRequestProperty("Authorization", "Bearer " + accessToken);
             conn.setUseCaches(false);
 
+            conn.connect();
+            ocsCall.connected();
             try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
                 wr.write(postData);
             }
 
             InputStream _is;
             Boolean isError = false;
+            breaker.onResult(conn.getResponseCode() < 500, System.currentTimeMillis() - start);
+            breaker = null;
             if (conn.getResponseCode() < 400) {
                 _is = conn.getInputStream();
                 isError = false;
@@ -476,6 +2105,8 @@ public class Nextcloud extends ExtensionHttpHandler {
                 responseTxt.append(inputLine);
             }
             in.close();
+            ocsCall.done(conn.getResponseCode(), postDataLength, responseTxt.length());
+            ocsCall = null;
 
             Pattern pattern;
             if (isError) {
@@ -498,6 +2129,10 @@ public class Nextcloud extends ExtensionHttpHandler {
             //And empty password or expiryDate will remove the property from the share
             //https://docs.nextcloud.com/server/12/developer_manual/core/ocs-share-api.html#update-share
             String errorMessage = "";
+            //the update requests go through the circuit breaker of the host as well, one permission per request
+            CircuitBreaker updateBreaker = circuitBreakers.get(new URL(OCSPath).getHost());
+            CircuitBreaker pending = null;
+            long updateStart = 0;
             try {
 
                 final String[] updateArguments = {"expireDate=" + expiryDate, "password=" + password};
@@ -506,7 +2141,11 @@ public class Nextcloud extends ExtensionHttpHandler {
                     postDataLength = postData.length;
                     String requestUrl = OCSPath + "/" + id;
 
+                    updateBreaker.acquirePermission();
+                    pending = updateBreaker;
+                    updateStart = System.currentTimeMillis();
                     url = new URL(requestUrl);
+                    ocsCall = new OcsCall("ocsUpdateShare", "PUT", url);
                     conn = (HttpURLConnection) url.openConnection();
 
                     conn.setDoOutput(true);
@@ -519,10 +2158,14 @@ public class Nextcloud extends ExtensionHttpHandler {
                     conn.setRequestProperty("Authorization", "Bearer " + accessToken);
                     conn.setUseCaches(false);
 
+                    conn.connect();
+                    ocsCall.connected();
                     try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
                         wr.write(postData);
                     }
 
+                    updateBreaker.onResult(conn.getResponseCode() < 500, System.currentTimeMillis() - updateStart);
+                    pending = null;
                     isError = false;
                     if (conn.getResponseCode() < 400) {
                         _is = conn.getInputStream();
@@ -541,6 +2184,8 @@ public class Nextcloud extends ExtensionHttpHandler {
                         responseTxt.append(inputLine);
                     }
                     in.close();
+                    ocsCall.done(conn.getResponseCode(), postDataLength, responseTxt.length());
+                    ocsCall = null;
                     if (!isError) {
                         try {
                             pattern = Pattern.compile("<message>(.+?)</message>");
@@ -554,8 +2199,18 @@ public class Nextcloud extends ExtensionHttpHandler {
                         }
                     }
                 }
+            } catch (CircuitBreakerOpenException e) {
+                errorMessage += "Nextcloud is temporarily unavailable. ";
             } catch (Exception e) {
                 errorMessage += e.toString();
+                if (pending != null) {
+                    //the update request did not complete
+                    pending.onResult(!(e instanceof IOException), System.currentTimeMillis() - updateStart);
+                }
+                if (ocsCall != null) {
+                    ocsCall.done(-1, -1, -1);
+                    ocsCall = null;
+                }
             }
 
                 /*The result variable holds the result from the `Create Share` request. If it starts with http it means the request was OK,
@@ -578,14 +2233,60 @@ public class Nextcloud extends ExtensionHttpHandler {
                 resp.setStatus(400);
                 return "{\"statuscode\":400,\"id\":\"" + id + "\",\"message\":\"\",\"url\":\"" + errorMessage + "\",\"status\":\"ok\",\"token\":\"\"}";
             }
+        } catch (CircuitBreakerOpenException ex) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", Long.toString(Math.max(1, ex.getRetryAfter() / 1000)));
+            return "{\"statuscode\":503,\"id\":0,\"message\":\"\",\"url\":\"" + "Nextcloud is temporarily unavailable. " + "\",\"status\":\"ok\",\"token\":\"\"}";
         } catch (
                 Exception ex) {
+            if (breaker != null) {
+                //the create share request did not complete
+                breaker.onResult(!(ex instanceof IOException), System.currentTimeMillis() - start);
+            }
+            if (ocsCall != null) {
+                ocsCall.done(-1, -1, -1);
+            }
             resp.setStatus(400);
             return "{\"statuscode\":400,\"id\":0,\"message\":\"\",\"url\":\"" + "Could not create share. " + "\",\"status\":\"ok\",\"token\":\"\"}";
         }
     }
 
 
+    /**
+     * Times an OCS call as phase of the request and records it as JFR event, with the path redacted and the
+     * connection time measured like the WebDAV requests recorded by Sardine.
+     */
+    private static class OcsCall {
+        private final PhaseTimer.Phase phase;
+        private final FlightRecorderEvent.Event event;
+        private final long startNanos = System.nanoTime();
+        private long connectionTime = -1;
+
+        OcsCall(String phase, String method, URL url) {
+            this.phase = PhaseTimer.start(phase);
+            this.event = OCS_EVENT.begin().set("method", method).set("host", url.getHost()).set("path", SardineImpl.redact(url.getPath()));
+        }
+
+        /**
+         * Marks the end of waiting for or opening the connection, only the first connection of the call counts.
+         */
+        void connected() {
+            if (connectionTime < 0) {
+                connectionTime = System.nanoTime() - startNanos;
+            }
+        }
+
+        /**
+         * @param status HTTP status, -1 when the call failed
+         */
+        void done(int status, long requestBytes, long responseBytes) {
+            phase.setBytes(responseBytes);
+            phase.close();
+            event.set("status", status).set("requestBytes", requestBytes).set("responseBytes", responseBytes)
+                    .set("connectionTime", connectionTime).commit();
+        }
+    }
+
     /*
      * Method to send JSON POST requests to Nextcloud
      * New Nextcloud API's are JSON based, in addition this implements ZimbraHttpConnectionManager which is preferred over HttpURLConnection for manageability of future Java changes.
@@ -617,10 +2318,25 @@ public class Nextcloud extends ExtensionHttpHandler {
       }
       request.send(formData);
      * */
-    public String doPostRequestToNextcloud(String accessToken, JSONObject NextcloudRequestJSON, String NextcloudApiURL) {
+    public String doPostRequestToNextcloud(String accessToken, JSONObject NextcloudRequestJSON, String NextcloudApiURL) throws CircuitBreakerOpenException {
+        CircuitBreaker breaker = null;
+        OcsCall ocsCall = null;
+        long start = System.currentTimeMillis();
         try {
+            breaker = circuitBreakers.get(new URL(NextcloudApiURL).getHost());
+            breaker.acquirePermission();
+            ocsCall = new OcsCall("talk", "POST", new URL(NextcloudApiURL));
+            final OcsCall call = ocsCall;
             RequestConfig config = RequestConfig.custom().setConnectTimeout(request_timeout).setConnectionRequestTimeout(request_timeout).setSocketTimeout(request_timeout).build();
-            HttpClientBuilder clientBuilder = ZimbraHttpConnectionManager.getExternalHttpConnMgr().newHttpClient().setDefaultRequestConfig(config);
+            HttpClientBuilder clientBuilder = ZimbraHttpConnectionManager.getExternalHttpConnMgr().newHttpClient().setDefaultRequestConfig(config)
+                    .setRequestExecutor(new HttpRequestExecutor() {
+                        @Override
+                        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                                throws IOException, HttpException {
+                            call.connected();
+                            return super.execute(request, conn, context);
+                        }
+                    });
 
             HttpResponse response;
             HttpProxyUtil.configureProxy(clientBuilder);
@@ -634,9 +2350,21 @@ public class Nextcloud extends ExtensionHttpHandler {
             post.addHeader("Accept", "application/json, text/plain, */*");
 
             response = HttpClientUtil.executeMethod(clientBuilder.build(), post);
-
-            return EntityUtils.toString(response.getEntity());
+            breaker.onResult(response.getStatusLine().getStatusCode() < 500, System.currentTimeMillis() - start);
+            breaker = null;
+
+            String responseBody = EntityUtils.toString(response.getEntity());
+            ocsCall.done(response.getStatusLine().getStatusCode(), requestEntity.getContentLength(), responseBody.length());
+            return responseBody;
+        } catch (CircuitBreakerOpenException e) {
+            throw e;
         } catch (Exception e) {
+            if (breaker != null) {
+                breaker.onResult(!(e instanceof IOException), System.currentTimeMillis() - start);
+            }
+            if (ocsCall != null) {
+                ocsCall.done(-1, -1, -1);
+            }
             ZimbraLog.extensions.error("doPostRequestToNextcloud failed for %s, %s", NextcloudRequestJSON.toString(), e.getMessage());
             return null;
         }
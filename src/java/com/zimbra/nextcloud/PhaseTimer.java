@@ -0,0 +1,169 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.github.sardine.util.FlightRecorderEvent;
+
+/**
+ * Times the stages of one request to the extension, such as the token refresh, fetching from Zimbra and uploading to
+ * Nextcloud, so a slow request can be attributed to a stage. The timer of the request is kept per thread, stages
+ * timed on other threads or in background jobs are recorded only as JFR events.
+ */
+public class PhaseTimer {
+    private static final ThreadLocal<PhaseTimer> current = new ThreadLocal<>();
+
+    private static final FlightRecorderEvent PHASE_EVENT = new FlightRecorderEvent("com.zimbra.nextcloud.Phase", "Nextcloud Extension Phase", "Nextcloud",
+            new String[]{"phase", "bytes"}, new Class<?>[]{String.class, long.class});
+
+    private final long start = System.nanoTime();
+    //total nanoseconds and count of every phase, in the order they first ran
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+    private final Map<String, String> tags = new LinkedHashMap<>();
+
+    /**
+     * Starts timing the request handled by the current thread.
+     *
+     * @return timer of the request
+     */
+    public static PhaseTimer begin() {
+        PhaseTimer timer = new PhaseTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * Stops adding phases of the current thread to this timer.
+     */
+    public void end() {
+        if (current.get() == this) {
+            current.remove();
+        }
+    }
+
+    /**
+     * Starts a phase, to be closed when it is done, usually with try-with-resources.
+     *
+     * @param name name of the phase, a token as allowed in the Server-Timing header
+     * @return running phase
+     */
+    public static Phase start(String name) {
+        return new Phase(name, current.get());
+    }
+
+    /**
+     * Adds information about the request to the slow request log, e.g. the action.
+     */
+    public static void tag(String key, String value) {
+        PhaseTimer timer = current.get();
+        if (timer != null) {
+            synchronized (timer) {
+                timer.tags.put(key, value);
+            }
+        }
+    }
+
+    private synchronized void add(String name, long nanos) {
+        long[] phase = phases.computeIfAbsent(name, k -> new long[2]);
+        phase[0] += nanos;
+        phase[1]++;
+    }
+
+    /**
+     * @return milliseconds since the request started
+     */
+    public long getElapsedMillis() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * @return value of the Server-Timing response header, with a <code>total</code> entry up to now
+     */
+    public synchronized String toServerTiming() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            header.append(phase.getKey()).append(";dur=").append(millis(phase.getValue()[0]));
+            if (phase.getValue()[1] > 1) {
+                header.append(";desc=\"").append(phase.getValue()[1]).append("x\"");
+            }
+            header.append(", ");
+        }
+        return header.append("total;dur=").append(millis(System.nanoTime() - start)).toString();
+    }
+
+    /**
+     * @return tags and phases as key=value pairs for the log
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder log = new StringBuilder();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            log.append(tag.getKey()).append('=').append(tag.getValue()).append(' ');
+        }
+        log.append("total=").append(getElapsedMillis()).append("ms");
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            log.append(' ').append(phase.getKey()).append('=').append(phase.getValue()[0] / 1000000).append("ms");
+            if (phase.getValue()[1] > 1) {
+                log.append('/').append(phase.getValue()[1]);
+            }
+        }
+        return log.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    /**
+     * A running phase, added to the timer of the request and recorded as JFR event when closed.
+     */
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final PhaseTimer timer;
+        private final FlightRecorderEvent.Event event;
+        private final long start = System.nanoTime();
+        private long bytes = -1;
+
+        private Phase(String name, PhaseTimer timer) {
+            this.name = name;
+            this.timer = timer;
+            this.event = PHASE_EVENT.begin();
+        }
+
+        /**
+         * @param bytes number of bytes the phase transferred, for the JFR event
+         */
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (timer != null) {
+                timer.add(name, System.nanoTime() - start);
+            }
+            event.set("phase", name).set("bytes", bytes).commit();
+        }
+    }
+}
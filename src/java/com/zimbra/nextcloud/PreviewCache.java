@@ -0,0 +1,267 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Size bounded on-disk cache of the previews (thumbnails) generated by Nextcloud, so a preview is
+ * generated by Nextcloud once instead of every time a folder is browsed.
+ * <p>
+ * Every preview is a file in the cache directory named after the hash of its key, the least recently
+ * used previews are deleted when the total size exceeds the maximum. The index is kept in memory and
+ * rebuilt from the directory at start, using the modification time for the initial order. Cache hits are
+ * served from a memory mapping of the file, which stays valid even if the file is evicted while it is
+ * being sent.
+ */
+public class PreviewCache {
+    private static final Pattern FILE_NAME = Pattern.compile("^([0-9a-f]{64})\\.(png|jpg|gif|webp)$");
+
+    private final File directory;
+    private final long maxSize;
+
+    //access ordered, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory directory holding the cached previews
+     * @param maxSize   maximum number of bytes of all cached previews together
+     */
+    public PreviewCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Indexes the previews cached before a restart and removes incomplete files.
+     */
+    public synchronized void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            ZimbraLog.extensions.warn("Could not create preview cache directory " + directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                Entry entry = new Entry(file, file.length());
+                entries.put(matcher.group(1), entry);
+                size += entry.length;
+            } else if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        evict();
+        ZimbraLog.extensions.info("Preview cache " + directory + " holds " + entries.size() + " previews, " + size + " bytes");
+    }
+
+    /**
+     * Returns the cached preview and marks it as recently used.
+     *
+     * @param key from {@link Hashes#sha256(String...)}
+     * @return the preview, or null if it is not cached
+     */
+    public synchronized Preview get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            try {
+                Preview preview = map(entry.file);
+                hits.incrementAndGet();
+                return preview;
+            } catch (IOException e) {
+                //deleted from outside
+                entries.remove(key);
+                size -= entry.length;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a preview, replacing any preview cached under the same key.
+     *
+     * @param key         from {@link Hashes#sha256(String...)}
+     * @param in          content of the preview, not closed
+     * @param contentType image/png, image/jpeg, image/gif or image/webp
+     * @return the stored preview
+     * @throws IOException when the preview could not be written
+     */
+    public Preview put(String key, InputStream in, String contentType) throws IOException {
+        File file = new File(directory, key + "." + extension(contentType));
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        long length;
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                IOUtils.copy(in, out);
+            }
+            length = tmp.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        synchronized (this) {
+            //lengths as stored, the file of a previous entry with the same name was replaced by the move already
+            Entry previous = entries.put(key, new Entry(file, length));
+            if (previous != null) {
+                size -= previous.length;
+                if (!previous.file.equals(file)) {
+                    previous.file.delete();
+                }
+            }
+            size += length;
+            //mapped before eviction so a preview larger than the cache can still be sent once
+            Preview preview = map(file);
+            evict();
+            return preview;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            size -= entry.length;
+            iterator.remove();
+            entry.file.delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static Preview map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            String name = file.getName();
+            String extension = name.substring(name.lastIndexOf('.') + 1);
+            return new Preview(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    "jpg".equals(extension) ? "image/jpeg" : "image/" + extension);
+        }
+    }
+
+    private static String extension(String contentType) throws IOException {
+        String type = contentType == null ? "" : contentType.split(";")[0].trim().toLowerCase();
+        switch (type) {
+            case "image/png":
+                return "png";
+            case "image/jpeg":
+                return "jpg";
+            case "image/gif":
+                return "gif";
+            case "image/webp":
+                return "webp";
+            default:
+                throw new IOException("Unexpected preview content type " + contentType);
+        }
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * File of a cached preview with its length when it was stored, the file itself can be replaced or deleted.
+     */
+    private static class Entry {
+        private final File file;
+        private final long length;
+
+        Entry(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A cached preview, mapped into memory.
+     */
+    public static class Preview {
+        private final ByteBuffer data;
+        private final String contentType;
+
+        Preview(ByteBuffer data, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return a new read-only view of the content, so concurrent readers do not share a position
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+
+        public int getLength() {
+            return data.capacity();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+}
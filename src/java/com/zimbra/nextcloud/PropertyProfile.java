@@ -0,0 +1,255 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.github.sardine.DavResource;
+
+/**
+ * The WebDAV properties a listing asks Nextcloud for and the JSON written for every entry, so the zimlet only
+ * pays for what it shows. Only the requested properties are in the PROPFIND or SEARCH request and only the
+ * properties Nextcloud returned are in the entries, there are no empty placeholders.
+ * <p>
+ * The profiles are <code>minimal</code> (type, etag and size), <code>standard</code> (what the zimlet has always
+ * listed) and <code>full</code>, extra properties are named <code>prefix:name</code> with the prefixes d, oc and nc,
+ * or <code>{namespace}name</code>. Entries can be written as columns, one list of keys followed by one array of
+ * values per entry, which saves repeating the keys for every entry of a large folder.
+ */
+public class PropertyProfile {
+    private static final String DAV = "DAV:";
+    private static final String OC = "http://owncloud.org/ns";
+    private static final String NC = "http://nextcloud.org/ns";
+
+    private static final QName RESOURCETYPE = new QName(DAV, "resourcetype", "d");
+    private static final QName GETETAG = new QName(DAV, "getetag", "d");
+    private static final QName GETCONTENTLENGTH = new QName(DAV, "getcontentlength", "d");
+    private static final QName GETLASTMODIFIED = new QName(DAV, "getlastmodified", "d");
+    private static final QName GETCONTENTTYPE = new QName(DAV, "getcontenttype", "d");
+    private static final QName FILEID = new QName(OC, "fileid", "oc");
+
+    private final String name;
+    private final Set<QName> properties = new LinkedHashSet<>();
+    private final List<String> columns = new ArrayList<>();
+
+    private PropertyProfile(String name, QName... properties) {
+        this.name = name;
+        columns.add("href");
+        for (QName property : properties) {
+            add(property);
+        }
+    }
+
+    private void add(QName property) {
+        if (properties.add(property)) {
+            columns.add(column(property));
+        }
+    }
+
+    private static PropertyProfile profile(String name) {
+        switch (name) {
+            case "minimal":
+                return new PropertyProfile(name, RESOURCETYPE, GETETAG, GETCONTENTLENGTH);
+            case "standard":
+                return new PropertyProfile(name, FILEID, GETCONTENTLENGTH, GETLASTMODIFIED, GETCONTENTTYPE, RESOURCETYPE, GETETAG);
+            case "full":
+                return new PropertyProfile(name, FILEID, GETCONTENTLENGTH, GETLASTMODIFIED, GETCONTENTTYPE, RESOURCETYPE, GETETAG,
+                        new QName(DAV, "displayname", "d"), new QName(DAV, "creationdate", "d"), new QName(DAV, "getcontentlanguage", "d"),
+                        new QName(OC, "permissions", "oc"), new QName(OC, "size", "oc"), new QName(OC, "favorite", "oc"),
+                        new QName(OC, "owner-display-name", "oc"), new QName(NC, "has-preview", "nc"));
+            default:
+                throw new IllegalArgumentException("Unknown property profile " + name);
+        }
+    }
+
+    /**
+     * Reads the profile of a listing request of the zimlet.
+     *
+     * @param request <code>profile</code> (minimal, standard or full), <code>properties</code> (extra properties)
+     *                and <code>format</code> (columns for the columnar format)
+     * @return the profile, standard when only extra properties or columns are asked for, null when the request uses
+     * none of them and expects the entries as they have always been written
+     * @throws IllegalArgumentException for an unknown profile or property name
+     */
+    public static PropertyProfile fromJSON(JSONObject request) throws Exception {
+        JSONArray extra = request.optJSONArray("properties");
+        if (!request.has("profile") && extra == null && !isColumns(request)) {
+            return null;
+        }
+        PropertyProfile profile = profile(request.optString("profile", "standard"));
+        if (extra != null) {
+            for (int i = 0; i < extra.length(); i++) {
+                profile.add(parse(extra.getString(i)));
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @return <code>true</code> if the zimlet asked for the columnar format
+     */
+    public static boolean isColumns(JSONObject request) {
+        return "columns".equals(request.optString("format"));
+    }
+
+    private static QName parse(String property) {
+        if (property.startsWith("{")) {
+            int end = property.indexOf('}');
+            if (end > 1 && end < property.length() - 1) {
+                return new QName(property.substring(1, end), property.substring(end + 1));
+            }
+        } else {
+            int colon = property.indexOf(':');
+            String prefix = colon > 0 ? property.substring(0, colon) : "";
+            String localName = property.substring(colon + 1);
+            if (!localName.isEmpty()) {
+                switch (prefix) {
+                    case "d":
+                        return new QName(DAV, localName, "d");
+                    case "oc":
+                        return new QName(OC, localName, "oc");
+                    case "nc":
+                        return new QName(NC, localName, "nc");
+                    default:
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown property " + property);
+    }
+
+    /**
+     * @return JSON key of a property, properties Sardine does not know are keyed by their local name
+     */
+    private static String column(QName property) {
+        if (DAV.equals(property.getNamespaceURI())) {
+            switch (property.getLocalPart()) {
+                case "resourcetype":
+                    return "resourceTypes";
+                case "getetag":
+                    return "etag";
+                case "getcontentlength":
+                    return "contentLength";
+                case "getlastmodified":
+                    return "modified";
+                case "creationdate":
+                    return "creation";
+                case "getcontenttype":
+                    return "contentType";
+                case "getcontentlanguage":
+                    return "contentLanguage";
+                case "displayname":
+                    return "displayName";
+                default:
+            }
+        }
+        return property.getLocalPart();
+    }
+
+    private static Object value(DavResource resource, QName property) {
+        if (DAV.equals(property.getNamespaceURI())) {
+            switch (property.getLocalPart()) {
+                case "resourcetype":
+                    JSONArray resourceTypes = new JSONArray();
+                    for (QName type : resource.getResourceTypes()) {
+                        resourceTypes.put("{" + type.getNamespaceURI() + "}" + type.getLocalPart());
+                    }
+                    return resourceTypes;
+                case "getetag":
+                    return resource.getEtag();
+                case "getcontentlength":
+                    //Sardine reports -1 when Nextcloud did not send it, as for folders
+                    return resource.getContentLength() != null && resource.getContentLength() >= 0 ? resource.getContentLength() : null;
+                case "getlastmodified":
+                    return resource.getModified() != null ? resource.getModified().getTime() : null;
+                case "creationdate":
+                    return resource.getCreation() != null ? resource.getCreation().getTime() : null;
+                case "getcontenttype":
+                    return resource.getContentType();
+                case "getcontentlanguage":
+                    return resource.getContentLanguage();
+                case "displayname":
+                    return resource.getDisplayName();
+                default:
+            }
+        }
+        return resource.getCustomPropsNS().get(property);
+    }
+
+    /**
+     * @return the properties to request from Nextcloud
+     */
+    public Set<QName> getProperties() {
+        return Collections.unmodifiableSet(properties);
+    }
+
+    /**
+     * @param href path of the entry relative to the WebDAV root
+     * @return the entry with the properties Nextcloud returned
+     */
+    public JSONObject toJSON(DavResource resource, String href) throws Exception {
+        JSONObject entry = new JSONObject();
+        entry.put("href", href);
+        for (QName property : properties) {
+            Object value = value(resource, property);
+            if (value != null) {
+                entry.put(column(property), value);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Writes entries created by {@link #toJSON} as columns.
+     *
+     * @return <code>{"columns": [keys], "rows": [[values of an entry], ...]}</code>, null for missing values
+     */
+    public JSONObject toColumns(JSONArray entries) throws Exception {
+        JSONArray rows = new JSONArray();
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            JSONArray row = new JSONArray();
+            for (String column : columns) {
+                row.put(entry.has(column) ? entry.get(column) : JSONObject.NULL);
+            }
+            rows.put(row);
+        }
+        JSONObject table = new JSONObject();
+        table.put("columns", new JSONArray(columns));
+        table.put("rows", rows);
+        return table;
+    }
+
+    /**
+     * @return the profile and its properties, identifies listings made with the same profile
+     */
+    @Override
+    public String toString() {
+        return name + properties;
+    }
+}
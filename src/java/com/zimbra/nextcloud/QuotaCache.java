@@ -0,0 +1,157 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.sardine.DavQuota;
+import com.github.sardine.impl.CircuitBreakerOpenException;
+import com.github.sardine.impl.SardineImpl;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Caches the quota available to users on Nextcloud, so saves that would be rejected by Nextcloud for
+ * being over quota can be refused before any content is transferred.
+ * <p>
+ * The quota is fetched per account and folder, as folders shared by other users count against the quota
+ * of their owner. After a successful upload the cached quota is lowered locally, it is fetched again
+ * from Nextcloud once the refresh interval has passed. When the quota cannot be determined saves are not
+ * refused, Nextcloud has the final word, and it is not fetched again for a few seconds so saves do not
+ * each wait for a failing request.
+ */
+public class QuotaCache {
+    private static final int MAX_CACHED = 10000;
+    private static final long FAILURE_INTERVAL = 10000;
+
+    private final long refreshInterval;
+    private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param refreshInterval milliseconds after which a cached quota is fetched again
+     */
+    public QuotaCache(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Checks if content fits in the quota of a folder.
+     *
+     * @param accountId account saving the content
+     * @param folderUrl WebDAV URL of the folder the content is saved to
+     * @param sardine   client authenticated as the account, used when the quota is not cached
+     * @param required  size in bytes of the content, 0 or less when unknown
+     * @throws QuotaExceededException when the content does not fit
+     * @throws CircuitBreakerOpenException when Nextcloud is unhealthy
+     */
+    public void check(String accountId, String folderUrl, SardineImpl sardine, long required) throws IOException {
+        if (required <= 0) {
+            return;
+        }
+        long available = getAvailable(accountId, folderUrl, sardine);
+        if (required > available) {
+            rejected.incrementAndGet();
+            throw new QuotaExceededException(required, available);
+        }
+    }
+
+    /**
+     * Lowers the cached quota of a folder after content was saved to it.
+     */
+    public void consumed(String accountId, String folderUrl, long bytes) {
+        Quota quota = quotas.get(key(accountId, folderUrl));
+        if (quota != null && quota.available.get() != Long.MAX_VALUE) {
+            quota.available.addAndGet(-bytes);
+        }
+    }
+
+    private long getAvailable(String accountId, String folderUrl, SardineImpl sardine) throws IOException {
+        String key = key(accountId, folderUrl);
+        Quota quota = quotas.get(key);
+        long now = System.currentTimeMillis();
+        if (quota == null || quota.expires < now) {
+            long available;
+            long expires = now + refreshInterval;
+            try {
+                DavQuota davQuota = sardine.getQuota(folderUrl);
+                //Nextcloud uses negative values for unlimited and not yet computed quota
+                available = davQuota == null || davQuota.getQuotaAvailableBytes() < 0 ? Long.MAX_VALUE : davQuota.getQuotaAvailableBytes();
+            } catch (CircuitBreakerOpenException e) {
+                throw e;
+            } catch (IOException e) {
+                ZimbraLog.extensions.info("Could not fetch quota of " + folderUrl + ": " + e.getMessage());
+                available = Long.MAX_VALUE;
+                expires = now + Math.min(FAILURE_INTERVAL, refreshInterval);
+            }
+            if (quotas.size() >= MAX_CACHED) {
+                evict(now);
+            }
+            quota = new Quota(available, expires);
+            quotas.put(key, quota);
+        }
+        return quota.available.get();
+    }
+
+    /**
+     * Removes expired quotas, or the one that expires first when all of them are still fresh.
+     */
+    private void evict(long now) {
+        if (quotas.values().removeIf(cached -> cached.expires < now)) {
+            return;
+        }
+        String oldest = null;
+        long oldestExpires = Long.MAX_VALUE;
+        for (Map.Entry<String, Quota> entry : quotas.entrySet()) {
+            if (entry.getValue().expires < oldestExpires) {
+                oldest = entry.getKey();
+                oldestExpires = entry.getValue().expires;
+            }
+        }
+        if (oldest != null) {
+            quotas.remove(oldest);
+        }
+    }
+
+    private static String key(String accountId, String folderUrl) {
+        return accountId + "\n" + folderUrl;
+    }
+
+    public int getCached() {
+        return quotas.size();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private static class Quota {
+        final AtomicLong available;
+        final long expires;
+
+        Quota(long available, long expires) {
+            this.available = new AtomicLong(available);
+            this.expires = expires;
+        }
+    }
+}
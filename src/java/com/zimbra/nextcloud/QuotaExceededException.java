@@ -0,0 +1,52 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.IOException;
+
+/**
+ * Thrown before a save to Nextcloud when the content does not fit in the quota of the user.
+ */
+public class QuotaExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long required;
+    private final long available;
+
+    public QuotaExceededException(long required, long available) {
+        super("Not enough space on Nextcloud, " + required + " bytes needed but " + available + " bytes available");
+        this.required = required;
+        this.available = available;
+    }
+
+    /**
+     * @return size in bytes of the content to save
+     */
+    public long getRequired() {
+        return required;
+    }
+
+    /**
+     * @return bytes available in the quota of the user
+     */
+    public long getAvailable() {
+        return available;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Adds the phases timed so far as Server-Timing header right before the response body is written, the last moment
+ * headers can be set, so they show up in the network tab of the browser devtools.
+ */
+public class ServerTimingResponse extends HttpServletResponseWrapper {
+    private final PhaseTimer timer;
+    private boolean headerSet;
+
+    public ServerTimingResponse(HttpServletResponse response, PhaseTimer timer) {
+        super(response);
+        this.timer = timer;
+    }
+
+    private void setServerTiming() {
+        if (!headerSet && !isCommitted()) {
+            headerSet = true;
+            setHeader("Server-Timing", timer.toServerTiming());
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        setServerTiming();
+        return super.getOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        setServerTiming();
+        return super.getWriter();
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        setServerTiming();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        setServerTiming();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        setServerTiming();
+        super.flushBuffer();
+    }
+}
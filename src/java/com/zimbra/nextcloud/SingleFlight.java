@@ -0,0 +1,81 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent identical calls: the first caller for a key executes the call, callers arriving
+ * while it is in flight wait for and share its result.
+ * <p>
+ * Every waiter receives the outcome on its own thread, a failed call is rethrown to each of them and an
+ * interrupted waiter does not affect the call or the other waiters. Results are not cached, the next
+ * call after completion executes again.
+ *
+ * @param <K> key identifying identical calls
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Executes the call, or waits for the identical call already in flight.
+     *
+     * @param key  identifies identical calls
+     * @param call executed when no identical call is in flight
+     * @return result of the call
+     * @throws Exception the exception thrown by the call
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<>(call);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            existing = task;
+        }
+        try {
+            return existing.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of distinct calls currently in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
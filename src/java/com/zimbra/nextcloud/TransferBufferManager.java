@@ -0,0 +1,581 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Buffers content on its way from Zimbra to Nextcloud while limiting the memory used for that by all
+ * users together.
+ * <p>
+ * Payloads up to the spill threshold are kept in heap and count against a node wide byte budget: when
+ * the budget is used up callers wait for other transfers to finish, and fail with
+ * {@link BudgetExceededException} after the configured wait. Larger payloads are spilled to a temp file,
+ * copied through a pool of reusable direct buffers, so they use no heap at all. Either way the resulting
+ * {@link Payload} produces a repeatable entity, so a PUT can be sent again (Expect-continue 417 retry,
+ * retry policy) without holding the data in memory twice.
+ */
+public class TransferBufferManager {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> pool;
+    private final long budget;
+    private final long spillThreshold;
+    private final long maxWait;
+    private final File spillDirectory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long inFlight;
+
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param bufferSize     size in bytes of each pooled direct buffer
+     * @param poolSize       maximum number of direct buffers kept for reuse
+     * @param budget         maximum number of bytes buffered in heap by all transfers together
+     * @param spillThreshold payloads larger than this number of bytes are buffered in a temp file
+     * @param maxWait        milliseconds to wait for budget, 0 to fail right away
+     * @param spillDirectory directory for temp files, or null for the default temp directory
+     */
+    public TransferBufferManager(int bufferSize, int poolSize, long budget, long spillThreshold, long maxWait, File spillDirectory) {
+        this.bufferSize = bufferSize;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        this.budget = budget;
+        this.spillThreshold = spillThreshold;
+        this.maxWait = maxWait;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Reads the stream to the end into a new payload. The stream is not closed.
+     * <p>
+     * Content of known length up to the spill threshold is read straight into an array of that length, content of
+     * unknown length into arrays of the buffer size with the spill threshold reserved up front, so the heap used
+     * never exceeds what is reserved against the budget. The pooled direct buffers are only used to copy spilled
+     * content into the temp file.
+     *
+     * @param in            content to buffer
+     * @param contentLength length of the content if known, otherwise -1
+     * @return buffered content, must be closed to release its budget or temp file
+     * @throws BudgetExceededException when no budget became available in time
+     */
+    public Payload buffer(InputStream in, long contentLength) throws IOException {
+        Payload payload = new Payload();
+        try {
+            if (contentLength > spillThreshold) {
+                payload.spill(spillDirectory);
+                spilled.incrementAndGet();
+                copyToFile(in, payload);
+                return payload;
+            }
+            //a single reservation, several transfers each holding part of the budget could wait on each other
+            reserve(payload, contentLength >= 0 ? contentLength : spillThreshold);
+            while (true) {
+                byte[] chunk = payload.chunkWithRoom();
+                if (chunk == null) {
+                    //only allocate another array when there is more content
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    chunk = payload.newChunk(contentLength >= 0 ? (int) contentLength : bufferSize);
+                    if (chunk == null) {
+                        //length was unknown or wrong, move what we have to disk
+                        payload.spill(spillDirectory);
+                        spilled.incrementAndGet();
+                        releaseReservation(payload);
+                        payload.channel.write(ByteBuffer.wrap(new byte[]{(byte) next}));
+                        payload.length++;
+                        copyToFile(in, payload);
+                        return payload;
+                    }
+                    chunk[0] = (byte) next;
+                    payload.length++;
+                    continue;
+                }
+                int offset = payload.chunkUsed();
+                int read = in.read(chunk, offset, chunk.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                payload.length += read;
+            }
+            //keep only the reservation for the arrays in use
+            releaseUnused(payload, payload.capacity);
+            return payload;
+        } catch (IOException | RuntimeException e) {
+            payload.close();
+            throw e;
+        }
+    }
+
+    private void copyToFile(InputStream in, Payload payload) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    payload.channel.write(buffer);
+                }
+                payload.length += read;
+                buffer.clear();
+            }
+            payload.channel.close();
+            payload.channel = null;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        //when the pool is full the buffer is left to the garbage collector
+        pool.offer(buffer);
+    }
+
+    private void reserve(Payload payload, long bytes) throws IOException {
+        if (bytes <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+            //a single payload larger than the budget may still go when nothing else is in flight
+            while (inFlight > 0 && inFlight + bytes > budget) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected.incrementAndGet();
+                    throw new BudgetExceededException("Transfer budget of " + budget + " bytes exceeded, " + inFlight + " bytes in flight");
+                }
+                released.awaitNanos(remaining);
+            }
+            inFlight += bytes;
+            payload.reserved += bytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BudgetExceededException("Interrupted waiting for transfer budget");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseUnused(Payload payload, long keep) {
+        if (payload.reserved <= keep) {
+            return;
+        }
+        lock.lock();
+        try {
+            inFlight -= payload.reserved - keep;
+            payload.reserved = keep;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseReservation(Payload payload) {
+        if (payload.reserved == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            inFlight -= payload.reserved;
+            payload.reserved = 0;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes currently buffered in heap
+     */
+    public long getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return number of direct buffers currently available for reuse
+     */
+    public int getPooledBuffers() {
+        return pool.size();
+    }
+
+    /**
+     * @return number of payloads spilled to disk so far
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * @return number of payloads rejected because the budget was exceeded so far
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Thrown when a transfer could not get its share of the byte budget in time.
+     */
+    public static class BudgetExceededException extends IOException {
+        private static final long serialVersionUID = -2739017402738126652L;
+
+        public BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Content buffered either in heap or in a temp file.
+     */
+    public class Payload implements Closeable {
+        //content in heap, every array full except the last one
+        private List<byte[]> chunks = new ArrayList<>();
+        private long capacity;
+        private File file;
+        private FileChannel channel;
+        private long length;
+        private long reserved;
+
+        /**
+         * Moves the content to a new temp file, the rest of the content is to be written to the channel.
+         */
+        private void spill(File directory) throws IOException {
+            file = File.createTempFile("nextcloud-", ".tmp", directory);
+            channel = new FileOutputStream(file).getChannel();
+            long remaining = length;
+            for (byte[] chunk : chunks) {
+                ByteBuffer buffered = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, remaining));
+                remaining -= buffered.remaining();
+                while (buffered.hasRemaining()) {
+                    channel.write(buffered);
+                }
+            }
+            chunks = null;
+            capacity = 0;
+        }
+
+        /**
+         * @return the last array if it is not full yet, otherwise null
+         */
+        private byte[] chunkWithRoom() {
+            return !chunks.isEmpty() && chunkUsed() < chunks.get(chunks.size() - 1).length ? chunks.get(chunks.size() - 1) : null;
+        }
+
+        /**
+         * @param firstSize size of the first array, the content length when known
+         * @return a new array to read into, null when the content does not fit below the spill threshold
+         */
+        private byte[] newChunk(int firstSize) throws IOException {
+            int size = (int) Math.min(chunks.isEmpty() && firstSize > 0 ? firstSize : bufferSize, spillThreshold - capacity);
+            if (size <= 0) {
+                return null;
+            }
+            if (capacity + size > reserved) {
+                //the content is longer than its Content-Length said
+                reserve(this, capacity + size - reserved);
+            }
+            byte[] chunk = new byte[size];
+            chunks.add(chunk);
+            capacity += size;
+            return chunk;
+        }
+
+        /**
+         * @return bytes read into the last array
+         */
+        private int chunkUsed() {
+            return chunks.isEmpty() ? 0 : (int) (length - (capacity - chunks.get(chunks.size() - 1).length));
+        }
+
+        /**
+         * @return number of bytes buffered
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return <code>true</code> if the content was spilled to a temp file
+         */
+        public boolean isSpilled() {
+            return file != null;
+        }
+
+        /**
+         * @return a new stream over the buffered content
+         */
+        public InputStream getInputStream() throws IOException {
+            if (chunks == null) {
+                return new FileInputStream(file);
+            }
+            List<InputStream> streams = new ArrayList<>();
+            long remaining = length;
+            for (byte[] chunk : chunks) {
+                int used = (int) Math.min(chunk.length, remaining);
+                streams.add(new ByteArrayInputStream(chunk, 0, used));
+                remaining -= used;
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        /**
+         * @return a new stream over the buffered content that a MimeMessage reads parts from without copying them
+         */
+        public InputStream getSharedInputStream() throws IOException {
+            if (chunks == null) {
+                return new SharedFileInputStream(file);
+            }
+            if (chunks.size() == 1) {
+                return new SharedByteArrayInputStream(chunks.get(0), 0, (int) length);
+            }
+            //joining the arrays would copy the content outside the budget
+            byte[][] used = chunks.toArray(new byte[chunks.size()][]);
+            return new SharedChunksInputStream(used, offsets(used), 0, length);
+        }
+
+        /**
+         * @return offset in the content of the first byte of every array
+         */
+        private long[] offsets(byte[][] used) {
+            long[] offsets = new long[used.length];
+            for (int i = 1; i < used.length; i++) {
+                offsets[i] = offsets[i - 1] + used[i - 1].length;
+            }
+            return offsets;
+        }
+
+        /**
+         * @param contentType content type of the entity or null
+         * @return repeatable entity for the buffered content
+         */
+        public HttpEntity toEntity(String contentType) {
+            ContentType type = contentType != null ? ContentType.parse(contentType) : null;
+            if (chunks == null) {
+                return new FileEntity(file, type);
+            }
+            if (chunks.size() == 1) {
+                return new ByteArrayEntity(chunks.get(0), 0, (int) length, type);
+            }
+            AbstractHttpEntity entity = new AbstractHttpEntity() {
+                @Override
+                public boolean isRepeatable() {
+                    return true;
+                }
+
+                @Override
+                public long getContentLength() {
+                    return length;
+                }
+
+                @Override
+                public boolean isStreaming() {
+                    return false;
+                }
+
+                @Override
+                public InputStream getContent() throws IOException {
+                    return getInputStream();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    long remaining = length;
+                    for (byte[] chunk : chunks) {
+                        int used = (int) Math.min(chunk.length, remaining);
+                        out.write(chunk, 0, used);
+                        remaining -= used;
+                    }
+                }
+            };
+            if (type != null) {
+                entity.setContentType(type.toString());
+            }
+            return entity;
+        }
+
+        /**
+         * Releases the budget and deletes the temp file.
+         */
+        @Override
+        public void close() {
+            chunks = null;
+            releaseReservation(this);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    ZimbraLog.extensions.info("Error closing spill file " + e.getMessage());
+                }
+                channel = null;
+            }
+            if (file != null && file.exists() && !file.delete()) {
+                ZimbraLog.extensions.info("Could not delete spill file " + file);
+            }
+        }
+    }
+
+    /**
+     * Stream over a range of content buffered in several arrays, which a MimeMessage reads parts from through
+     * {@link #newStream} without copying them, as with a {@link SharedByteArrayInputStream} over a single array.
+     */
+    private static class SharedChunksInputStream extends InputStream implements SharedInputStream {
+        private final byte[][] chunks;
+        private final long[] offsets;
+        private final long start;
+        private final long end;
+        private long position;
+        private long mark;
+
+        SharedChunksInputStream(byte[][] chunks, long[] offsets, long start, long end) {
+            this.chunks = chunks;
+            this.offsets = offsets;
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.mark = start;
+        }
+
+        /**
+         * @return index of the array holding the byte at the offset in the content
+         */
+        private int chunk(long offset) {
+            int index = Arrays.binarySearch(offsets, offset);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) {
+                return -1;
+            }
+            int index = chunk(position);
+            return chunks[index][(int) (position++ - offsets[index])] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int index = chunk(position);
+            int from = (int) (position - offsets[index]);
+            int count = (int) Math.min(Math.min(len, chunks[index].length - from), end - position);
+            System.arraycopy(chunks[index], from, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+
+        @Override
+        public long getPosition() {
+            return position - start;
+        }
+
+        @Override
+        public InputStream newStream(long from, long to) {
+            if (from < 0) {
+                throw new IllegalArgumentException("start < 0");
+            }
+            return new SharedChunksInputStream(chunks, offsets, start + from, to == -1 ? end : Math.min(end, start + to));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A save of an email and/or its attachments to Nextcloud, with the result of every file.
+ * <p>
+ * The job is backed by the JSON it is persisted as, see {@link UploadJobQueue}. Files that are already
+ * done are skipped when a job is resumed.
+ */
+public class UploadJob {
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private final JSONObject json;
+    private Runnable onUpdate;
+
+    /**
+     * @param accountId Zimbra account the job runs as
+     * @param path      Nextcloud DAV URL of the target folder
+     * @param fileName  encoded file name of the email, attachments are prefixed with it
+     * @param mail      the nextcloudAction=put request of the zimlet
+     */
+    public UploadJob(String accountId, String path, String fileName, JSONObject mail) throws JSONException {
+        json = new JSONObject();
+        json.put("id", UUID.randomUUID().toString());
+        json.put("accountId", accountId);
+        json.put("path", path);
+        json.put("fileName", fileName);
+        json.put("mail", mail);
+        json.put("status", QUEUED);
+        json.put("total", 0);
+        json.put("results", new JSONArray());
+        json.put("created", System.currentTimeMillis());
+        json.put("updated", System.currentTimeMillis());
+    }
+
+    private UploadJob(JSONObject json) {
+        this.json = json;
+    }
+
+    /**
+     * @param persisted JSON as returned by {@link #toJSON()}
+     */
+    public static UploadJob fromJSON(String persisted) throws JSONException {
+        return new UploadJob(new JSONObject(persisted));
+    }
+
+    /**
+     * @param onUpdate called after every change of the job, e.g. to persist it
+     */
+    public void setOnUpdate(Runnable onUpdate) {
+        this.onUpdate = onUpdate;
+    }
+
+    public synchronized String getId() {
+        return json.optString("id");
+    }
+
+    public synchronized String getAccountId() {
+        return json.optString("accountId");
+    }
+
+    public synchronized String getPath() {
+        return json.optString("path");
+    }
+
+    public synchronized String getFileName() {
+        return json.optString("fileName");
+    }
+
+    public synchronized JSONObject getMail() throws JSONException {
+        return json.getJSONObject("mail");
+    }
+
+    public synchronized String getStatus() {
+        return json.optString("status");
+    }
+
+    public synchronized long getUpdated() {
+        return json.optLong("updated");
+    }
+
+    public synchronized boolean isFinished() {
+        return DONE.equals(getStatus()) || FAILED.equals(getStatus());
+    }
+
+    public void setStatus(String status) {
+        update("status", status);
+    }
+
+    public void setTotal(int total) {
+        update("total", total);
+    }
+
+    /**
+     * Marks the job as finished, failed if any file failed or an error message is given.
+     */
+    public void finish(boolean success, String error) {
+        if (error != null) {
+            update("error", error);
+        }
+        setStatus(success && error == null ? DONE : FAILED);
+    }
+
+    /**
+     * @return <code>true</code> if the file was uploaded by an earlier run of the job
+     */
+    public synchronized boolean isDone(String name) {
+        JSONObject result = getResult(name);
+        return result != null && DONE.equals(result.optString("status"));
+    }
+
+    /**
+     * Records a successfully uploaded file, the details are part of the result before the job is saved.
+     *
+     * @param name    encoded file name on Nextcloud
+     * @param bytes   size of the file
+     * @param details such as the etag and fileId Nextcloud returned, null values are left out
+     * @return the result entry
+     */
+    public JSONObject fileDone(String name, long bytes, Map<String, String> details) {
+        JSONObject result;
+        synchronized (this) {
+            result = putResult(name, DONE);
+            try {
+                result.put("bytes", bytes);
+                for (Map.Entry<String, String> detail : details.entrySet()) {
+                    if (detail.getValue() != null) {
+                        result.put(detail.getKey(), detail.getValue());
+                    }
+                }
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        update("updated", System.currentTimeMillis());
+        return result;
+    }
+
+    /**
+     * Records a file that could not be uploaded.
+     */
+    public void fileFailed(String name, String error) {
+        synchronized (this) {
+            JSONObject result = putResult(name, FAILED);
+            try {
+                result.put("error", error == null ? "" : error);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        update("updated", System.currentTimeMillis());
+    }
+
+    private JSONObject getResult(String name) {
+        JSONArray results = json.optJSONArray("results");
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result != null && name.equals(result.optString("name"))) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private JSONObject putResult(String name, String status) {
+        try {
+            JSONObject result = getResult(name);
+            if (result == null) {
+                result = new JSONObject();
+                result.put("name", name);
+                json.getJSONArray("results").put(result);
+            }
+            result.remove("error");
+            result.put("status", status);
+            return result;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void update(String key, Object value) {
+        synchronized (this) {
+            try {
+                json.put(key, value);
+                if (!"updated".equals(key)) {
+                    json.put("updated", System.currentTimeMillis());
+                }
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (onUpdate != null) {
+            onUpdate.run();
+        }
+    }
+
+    /**
+     * @return the job as persisted
+     */
+    public synchronized String toJSON() {
+        return json.toString();
+    }
+
+    /**
+     * @return status and progress of the job as returned to the zimlet
+     */
+    public synchronized JSONObject toStatusJSON() throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("jobId", getId());
+        status.put("status", getStatus());
+        status.put("total", json.optInt("total"));
+        int completed = 0;
+        JSONArray results = json.getJSONArray("results");
+        for (int i = 0; i < results.length(); i++) {
+            if (DONE.equals(results.getJSONObject(i).optString("status"))) {
+                completed++;
+            }
+        }
+        status.put("completed", completed);
+        status.put("results", new JSONArray(results.toString()));
+        if (json.has("error")) {
+            status.put("error", json.getString("error"));
+        }
+        status.put("created", json.optLong("created"));
+        status.put("updated", json.optLong("updated"));
+        return status;
+    }
+}
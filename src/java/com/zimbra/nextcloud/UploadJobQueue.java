@@ -0,0 +1,223 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.github.sardine.impl.CircuitBreakerOpenException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthProvider;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.oauth.token.handlers.impl.NextCloudTokenHandler;
+
+/**
+ * Runs saves to Nextcloud in the background so the zimlet does not have to wait for them.
+ * <p>
+ * Every job is persisted as a JSON file in the job directory and updated after every file, so jobs that
+ * were queued or running when mailboxd stopped are resumed on start, skipping the files already uploaded.
+ * No credentials are persisted, the worker obtains a Zimbra auth token and a Nextcloud access token for
+ * the account of the job when it runs. Finished jobs are kept for a day so the zimlet can fetch their status.
+ */
+public class UploadJobQueue {
+    private static final long RETENTION = TimeUnit.DAYS.toMillis(1);
+
+    private final Nextcloud nextcloud;
+    private final File directory;
+    private final int capacity;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentMap<String, UploadJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * @param nextcloud handler that performs the saves
+     * @param directory directory the jobs are persisted in
+     * @param capacity  maximum number of jobs queued or running at the same time
+     * @param workers   number of jobs running at the same time
+     */
+    public UploadJobQueue(Nextcloud nextcloud, File directory, int capacity, int workers) {
+        this.nextcloud = nextcloud;
+        this.directory = directory;
+        this.capacity = capacity;
+        this.executor = new ScheduledThreadPoolExecutor(workers, r -> {
+            Thread thread = new Thread(r, "nextcloud-upload-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the persisted jobs and resumes the unfinished ones.
+     */
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            ZimbraLog.extensions.error("Could not create Nextcloud upload job directory %s", directory);
+            return;
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try {
+                UploadJob job = UploadJob.fromJSON(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                if (job.isFinished()) {
+                    if (System.currentTimeMillis() - job.getUpdated() > RETENTION) {
+                        Files.deleteIfExists(file.toPath());
+                    } else {
+                        jobs.put(job.getId(), job);
+                    }
+                    continue;
+                }
+                ZimbraLog.extensions.info("Resuming Nextcloud upload job " + job.getId());
+                job.setOnUpdate(() -> persist(job));
+                job.setStatus(UploadJob.QUEUED);
+                jobs.put(job.getId(), job);
+                pending.incrementAndGet();
+                executor.execute(() -> run(job));
+            } catch (Exception e) {
+                ZimbraLog.extensions.errorQuietly("Could not load Nextcloud upload job " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the workers, unfinished jobs are resumed on the next start.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Persists and queues a new job.
+     *
+     * @return the queued job
+     * @throws QueueFullException when the maximum number of jobs is queued or running
+     */
+    public UploadJob submit(Account account, String path, String fileName, JSONObject mail) throws Exception {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            throw new QueueFullException();
+        }
+        removeExpired();
+        UploadJob job = new UploadJob(account.getId(), path, fileName, mail);
+        job.setOnUpdate(() -> persist(job));
+        jobs.put(job.getId(), job);
+        try {
+            persist(job);
+            executor.execute(() -> run(job));
+        } catch (RuntimeException e) {
+            jobs.remove(job.getId());
+            pending.decrementAndGet();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * @return the job with the given id if it belongs to the account, otherwise null
+     */
+    public UploadJob get(Account account, String id) {
+        UploadJob job = jobs.get(id);
+        return job != null && account.getId().equals(job.getAccountId()) ? job : null;
+    }
+
+    /**
+     * @return number of jobs queued or running
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void run(UploadJob job) {
+        boolean requeued = false;
+        try {
+            Account account = Provisioning.getInstance().getAccountById(job.getAccountId());
+            if (account == null) {
+                job.finish(false, "Account not found");
+                return;
+            }
+            job.setStatus(UploadJob.RUNNING);
+            AuthToken authToken = AuthProvider.getAuthToken(account);
+            String accessToken = NextCloudTokenHandler.refreshAccessToken(account, "nextcloud");
+            Server server = Provisioning.getInstance().getServer(account);
+            boolean success = nextcloud.fetchMail(null, authToken, accessToken, job.getPath(), job.getFileName(), job.getMail(), server, job);
+            job.finish(success, null);
+        } catch (CircuitBreakerOpenException e) {
+            //Nextcloud is unhealthy, try again once the circuit breaker lets requests through
+            ZimbraLog.extensions.info("Postponing Nextcloud upload job " + job.getId() + ": " + e.getMessage());
+            job.setStatus(UploadJob.QUEUED);
+            executor.schedule(() -> run(job), Math.max(1000, e.getRetryAfter()), TimeUnit.MILLISECONDS);
+            requeued = true;
+        } catch (Exception e) {
+            ZimbraLog.extensions.info("Nextcloud upload job " + job.getId() + " failed: " + e.getMessage());
+            job.finish(false, e.getMessage());
+        } finally {
+            if (!requeued) {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void persist(UploadJob job) {
+        File file = new File(directory, job.getId() + ".json");
+        File tmp = new File(directory, job.getId() + ".json.tmp");
+        try {
+            Files.write(tmp.toPath(), job.toJSON().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ZimbraLog.extensions.errorQuietly("Could not persist Nextcloud upload job " + job.getId(), e);
+        }
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (UploadJob job : jobs.values()) {
+            if (job.isFinished() && now - job.getUpdated() > RETENTION && jobs.remove(job.getId(), job)) {
+                new File(directory, job.getId() + ".json").delete();
+            }
+        }
+    }
+
+    /**
+     * Thrown when the maximum number of jobs is queued or running.
+     */
+    public static class QueueFullException extends Exception {
+        private static final long serialVersionUID = 6140954712049531716L;
+
+        public QueueFullException() {
+            super("Too many saves to Nextcloud are queued, please try again later.");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+package com.zimbra.nextcloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.EntityTemplate;
+
+/**
+ * ZIP file of content buffered by the {@link TransferBufferManager}, for uploads that need a Content-Length.
+ * <p>
+ * Every entry is STORED, its size and CRC are known once it is buffered, so the exact length of the ZIP file
+ * is known before any of it is written and it can be written again for a retry. Attachments like images and
+ * office documents are compressed already.
+ */
+public class ZipBundle implements Closeable {
+    //local file header and central directory header without the name, end of central directory record
+    private static final int LOCAL_HEADER = 30;
+    private static final int CENTRAL_HEADER = 46;
+    private static final int END_RECORD = 22;
+    //beyond these limits ZipOutputStream adds ZIP64 records, which are not counted
+    private static final long ZIP64_SIZE = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES = 0xFFFF;
+
+    private final TransferBufferManager buffers;
+    private final List<Entry> entries = new ArrayList<>();
+    //the same time for every write, so a retry sends the same bytes
+    private final long time = System.currentTimeMillis();
+    private long length = END_RECORD;
+
+    public ZipBundle(TransferBufferManager buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Buffers the content as the next entry. The stream is read to the end but not closed.
+     *
+     * @param name          unique name of the entry
+     * @param in            content of the entry
+     * @param contentLength length of the content if known, otherwise -1
+     * @throws TransferBufferManager.BudgetExceededException when no budget became available in time
+     */
+    public void add(String name, InputStream in, long contentLength) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        TransferBufferManager.Payload payload = buffers.buffer(checked, contentLength);
+        Entry entry = new Entry(name, payload, checked.getChecksum().getValue());
+        entries.add(entry);
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        length += LOCAL_HEADER + CENTRAL_HEADER + 2L * nameLength + payload.getLength();
+        if (length >= ZIP64_SIZE || entries.size() >= ZIP64_ENTRIES) {
+            throw new IOException("ZIP file too large, " + entries.size() + " entries of " + length + " bytes");
+        }
+    }
+
+    /**
+     * @return length in bytes of the ZIP file
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return repeatable entity that writes the ZIP file
+     */
+    public HttpEntity toEntity() {
+        EntityTemplate entity = new EntityTemplate(out -> {
+            //closing the ZIP stream releases its Deflater, but must not close the connection
+            try (ZipOutputStream zip = new ZipOutputStream(new CloseShieldOutputStream(out), StandardCharsets.UTF_8)) {
+                zip.setMethod(ZipOutputStream.STORED);
+                for (Entry entry : entries) {
+                    ZipEntry zipEntry = new ZipEntry(entry.name);
+                    zipEntry.setTime(time);
+                    zipEntry.setSize(entry.payload.getLength());
+                    zipEntry.setCompressedSize(entry.payload.getLength());
+                    zipEntry.setCrc(entry.crc);
+                    zip.putNextEntry(zipEntry);
+                    try (InputStream in = entry.payload.getInputStream()) {
+                        IOUtils.copy(in, zip);
+                    }
+                    zip.closeEntry();
+                }
+            }
+        }) {
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+        };
+        entity.setContentType("application/zip");
+        return entity;
+    }
+
+    /**
+     * Releases the budget and temp files of all entries.
+     */
+    @Override
+    public void close() {
+        for (Entry entry : entries) {
+            entry.payload.close();
+        }
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final String name;
+        private final TransferBufferManager.Payload payload;
+        private final long crc;
+
+        Entry(String name, TransferBufferManager.Payload payload, long crc) {
+            this.name = name;
+            this.payload = payload;
+            this.crc = crc;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthProvider;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.nextcloud.Nextcloud;
+import com.zimbra.nextcloud.NextcloudExtension;
+
+/**
+ * Drives the actions of {@link Nextcloud#doPost} concurrently against {@link StubNextcloud} and {@link StubZimbra}
+ * and reports throughput, latency percentiles and heap use per scenario. MB/s is the traffic between the handler and
+ * the Nextcloud stub, heap is relative to the heap in use before the scenario.
+ * <p>
+ * The handler runs in this JVM, so it has to be started on a Zimbra server as the zimbra user, with the Zimbra jars
+ * and the extension on the classpath, to authenticate as a test account. For the save scenarios the localconfig key
+ * <code>nextcloud_zimlet_zimbra_hostname_override</code> must point at the port the Zimbra stub listens on, for example
+ * <code>http://127.0.0.1:7099</code>.
+ * <p>
+ * Options are given as <code>--name=value</code>, see {@link #DEFAULTS}.
+ */
+public class LoadGenerator {
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        //Zimbra account the requests are authenticated as
+        DEFAULTS.put("account", "");
+        //comma separated scenarios to run: propfind, get, put, bundle, share
+        DEFAULTS.put("scenarios", "propfind,get,put,bundle,share");
+        DEFAULTS.put("concurrency", "16");
+        DEFAULTS.put("requests", "500");
+        //requests per scenario before measuring starts, to warm up the JIT and the connection pools
+        DEFAULTS.put("warmup", "50");
+        //files in the folder listed and downloaded from
+        DEFAULTS.put("files", "100");
+        DEFAULTS.put("fileSize", "1048576");
+        DEFAULTS.put("mailSize", "65536");
+        DEFAULTS.put("attachmentSize", "1048576");
+        //port of the Nextcloud stub, 0 for any free port
+        DEFAULTS.put("nextcloudPort", "0");
+        //milliseconds added before every response of the stubs
+        DEFAULTS.put("latency", "0");
+        //bytes per second of every response of the stubs, 0 for unlimited
+        DEFAULTS.put("bandwidth", "0");
+        //fraction of requests the stubs answer with 503
+        DEFAULTS.put("errorRate", "0");
+        //fraction of responses the stubs cut off halfway
+        DEFAULTS.put("resetRate", "0");
+    }
+
+    private static final String FOLDER = "/LoadTest/";
+    private static final String UPLOADS = "/Uploads/";
+
+    private final Map<String, String> options;
+    private final Nextcloud nextcloud = new Nextcloud();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private StubNextcloud stubNextcloud;
+    private StubZimbra stubZimbra;
+    private String authToken;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0 || !DEFAULTS.containsKey(arg.substring(2, separator))) {
+                System.err.println("Unknown option " + arg + ", options and defaults: " + DEFAULTS);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        if (options.get("account").isEmpty()) {
+            System.err.println("Usage: LoadGenerator --account=user@example.com [--name=value ...], options and defaults: " + DEFAULTS);
+            System.exit(1);
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName(options.get("account"));
+        if (account == null) {
+            throw new IllegalArgumentException("No such account " + options.get("account"));
+        }
+        authToken = AuthProvider.getAuthToken(account).getEncoded();
+
+        stubNextcloud = new StubNextcloud(intOption("nextcloudPort"));
+        stubNextcloud.populate(FOLDER, intOption("files"), longOption("fileSize"));
+        stubNextcloud.populate(UPLOADS, 0, 0);
+        String override = Nextcloud.nextcloud_zimlet_zimbra_hostname_override.value();
+        if (override != null && !override.isEmpty()) {
+            stubZimbra = new StubZimbra(new URL(override).getPort());
+            stubZimbra.setMailSize(longOption("mailSize"));
+        }
+        for (StubServer stub : new StubServer[]{stubNextcloud, stubZimbra}) {
+            if (stub != null) {
+                stub.setLatency(longOption("latency"));
+                stub.setBandwidth(longOption("bandwidth"));
+                stub.setErrorRate(Double.parseDouble(options.get("errorRate")));
+                stub.setResetRate(Double.parseDouble(options.get("resetRate")));
+                stub.start();
+            }
+        }
+        nextcloud.init(new NextcloudExtension());
+        try {
+            System.out.println(String.format("%-10s %8s %7s %9s %9s %9s %9s %9s %11s %11s",
+                    "scenario", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "max ms", "heap peak", "heap after"));
+            for (String scenario : options.get("scenarios").split(",")) {
+                scenario = scenario.trim();
+                if ((scenario.equals("put") || scenario.equals("bundle")) && stubZimbra == null) {
+                    System.out.println(String.format("%-10s skipped, nextcloud_zimlet_zimbra_hostname_override is not set", scenario));
+                    continue;
+                }
+                runScenario(scenario, intOption("warmup"));
+                System.out.println(runScenario(scenario, intOption("requests")).format(scenario));
+            }
+            System.out.println("stats: " + nextcloud.stats());
+        } finally {
+            nextcloud.destroy();
+            stubNextcloud.stop();
+            if (stubZimbra != null) {
+                stubZimbra.stop();
+            }
+        }
+    }
+
+    /**
+     * Sends the requests of a scenario from as many threads as configured.
+     */
+    private Result runScenario(String scenario, int requests) throws Exception {
+        Result result = new Result(requests);
+        if (requests == 0) {
+            return result;
+        }
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong heapPeak = new AtomicLong(heapBefore);
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                heapPeak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(intOption("concurrency"));
+        AtomicInteger next = new AtomicInteger();
+        long traffic = stubNextcloud.getBytesSent() + stubNextcloud.getBytesReceived();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                int n = next.getAndIncrement();
+                long requestStart = System.nanoTime();
+                int status;
+                try {
+                    FakeResponse response = new FakeResponse();
+                    nextcloud.doPost(request(jsonData(scenario, n)), response.proxy());
+                    status = response.status;
+                } catch (Exception e) {
+                    status = 599;
+                }
+                result.record(n, System.nanoTime() - requestStart, status);
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        result.elapsed = System.nanoTime() - start;
+        //transferred from and to Nextcloud, the actual work of downloads and saves
+        result.bytes = stubNextcloud.getBytesSent() + stubNextcloud.getBytesReceived() - traffic;
+
+        sampler.interrupt();
+        sampler.join();
+        result.heapPeak = heapPeak.get() - heapBefore;
+        System.gc();
+        result.heapAfter = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+        return result;
+    }
+
+    /**
+     * The request the zimlet would send for the n-th request of a scenario.
+     */
+    private JSONObject jsonData(String scenario, int n) throws Exception {
+        String davPath = stubNextcloud.getUrl() + StubNextcloud.WEBDAV;
+        JSONObject json = new JSONObject();
+        json.put("nextcloudDAVPath", davPath);
+        switch (scenario) {
+            case "propfind":
+                json.put("nextcloudAction", "propfind");
+                json.put("nextcloudPath", FOLDER);
+                break;
+            case "get":
+                json.put("nextcloudAction", "get");
+                json.put("nextcloudPath", FOLDER + "file-" + (n % intOption("files")) + ".bin");
+                break;
+            case "put":
+            case "bundle":
+                json.put("nextcloudAction", "put");
+                json.put("nextcloudPath", UPLOADS);
+                json.put("nextcloudFilename", scenario + "-" + n + "-" + System.nanoTime());
+                json.put("id", Integer.toString(n));
+                json.put("size", longOption("mailSize"));
+                json.put("bundle", scenario.equals("bundle"));
+                JSONObject attachment = new JSONObject();
+                attachment.put("url", "service/home/~/?auth=co&id=" + n + "&part=2&size=" + longOption("attachmentSize"));
+                attachment.put("filename", "attachment.bin");
+                attachment.put("size", longOption("attachmentSize"));
+                json.put("attachments", new JSONArray().put(attachment));
+                break;
+            case "share":
+                json.put("nextcloudAction", "createShare");
+                json.put("nextcloudPath", FOLDER + "file-" + (n % intOption("files")) + ".bin");
+                json.put("OCSPath", stubNextcloud.getUrl() + "/ocs/v2.php/apps/files_sharing/api/v1/shares");
+                json.put("shareType", "3");
+                json.put("password", "");
+                json.put("expiryDate", "");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+        return json;
+    }
+
+    /**
+     * A multipart POST of the zimlet with the <code>jsondata</code> part, authenticated with the cookie of the account.
+     */
+    private HttpServletRequest request(JSONObject jsonData) {
+        byte[] data = jsonData.toString().getBytes(StandardCharsets.UTF_8);
+        Part part = (Part) Proxy.newProxyInstance(Part.class.getClassLoader(), new Class<?>[]{Part.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInputStream":
+                    return new ByteArrayInputStream(data);
+                case "getName":
+                    return "jsondata";
+                case "getSize":
+                    return (long) data.length;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+        Cookie[] cookies = {new Cookie("ZM_AUTH_TOKEN", authToken)};
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getPart":
+                            return "jsondata".equals(args[0]) ? part : null;
+                        case "getCookies":
+                            return cookies;
+                        case "getMethod":
+                            return "POST";
+                        case "getServerName":
+                        case "getRemoteAddr":
+                            return "127.0.0.1";
+                        case "getContentType":
+                            return "multipart/form-data; boundary=loadtest";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type.isPrimitive() && type != void.class) {
+            throw new UnsupportedOperationException(type.getName());
+        }
+        return null;
+    }
+
+    /**
+     * Response that counts and discards the body.
+     */
+    private static class FakeResponse {
+        private volatile int status = 200;
+        private final AtomicLong bytes = new AtomicLong();
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                bytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes.addAndGet(len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setStatus":
+                            case "sendError":
+                                status = (Integer) args[0];
+                                return null;
+                            case "getStatus":
+                                return status;
+                            case "getOutputStream":
+                                return out;
+                            case "getWriter":
+                                return new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
+                            case "isCommitted":
+                                return bytes.get() > 0;
+                            default:
+                                return defaultValue(method.getReturnType());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Measurements of one run of a scenario.
+     */
+    private static class Result {
+        private final long[] latencies;
+        private final AtomicInteger errors = new AtomicInteger();
+        private long bytes;
+        private long elapsed;
+        private long heapPeak;
+        private long heapAfter;
+
+        Result(int requests) {
+            latencies = new long[requests];
+        }
+
+        void record(int n, long latency, int status) {
+            latencies[n] = latency;
+            if (status >= 400) {
+                errors.incrementAndGet();
+            }
+        }
+
+        String format(String scenario) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            double seconds = elapsed / 1e9;
+            return String.format("%-10s %8d %7d %9.1f %9.2f %9.1f %9.1f %9.1f %8.1f MB %8.1f MB", scenario, sorted.length, errors.get(),
+                    sorted.length / seconds, bytes / seconds / (1024 * 1024), percentile(sorted, 50), percentile(sorted, 99),
+                    sorted[sorted.length - 1] / 1e6, heapPeak / (1024.0 * 1024), heapAfter / (1024.0 * 1024));
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private long longOption(String name) {
+        return Long.parseLong(options.get(name));
+    }
+}
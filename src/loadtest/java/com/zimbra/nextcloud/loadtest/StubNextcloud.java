@@ -0,0 +1,445 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Stand-in for Nextcloud implementing the parts of WebDAV, OCS and OAuth the extension uses: PROPFIND, GET, PUT,
+ * MKCOL, MOVE, DELETE, REPORT sync-collection, previews, the shares API and the token endpoint.
+ * <p>
+ * Files are kept as a size only, their content is generated on download from the file id. The same tree is
+ * served under <code>/remote.php/webdav</code> and <code>/remote.php/dav/files/loadtest</code>.
+ */
+public class StubNextcloud extends StubServer {
+    public static final String USER = "loadtest";
+    public static final String WEBDAV = "/remote.php/webdav";
+    private static final String DAV_FILES = "/remote.php/dav/files/" + USER;
+
+    private static class Node {
+        final boolean collection;
+        final long size;
+        final long fileId;
+        final String etag;
+        final long modified;
+
+        Node(boolean collection, long size, long fileId) {
+            this.collection = collection;
+            this.size = size;
+            this.fileId = fileId;
+            this.etag = Long.toHexString(fileId) + Long.toHexString(System.nanoTime());
+            this.modified = System.currentTimeMillis();
+        }
+    }
+
+    //keyed by path below the DAV root without trailing slash, the root is ""
+    private final ConcurrentSkipListMap<String, Node> nodes = new ConcurrentSkipListMap<>();
+    private final AtomicLong fileIds = new AtomicLong(1000);
+    private final AtomicLong syncToken = new AtomicLong();
+
+    //total bytes users may store, negative for unlimited as Nextcloud reports it
+    private volatile long quota = -3;
+
+    public StubNextcloud(int port) throws IOException {
+        super(port);
+        nodes.put("", new Node(true, 0, fileIds.incrementAndGet()));
+    }
+
+    public void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * Creates a folder with files of the given size, for listing and download scenarios.
+     */
+    public void populate(String folder, int files, long size) {
+        String path = normalize(folder);
+        nodes.put(path, new Node(true, 0, fileIds.incrementAndGet()));
+        for (int i = 0; i < files; i++) {
+            nodes.put(path + "/file-" + i + ".bin", new Node(false, size, fileIds.incrementAndGet()));
+        }
+        syncToken.incrementAndGet();
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.contains("/apps/oauth2/api/v1/token")) {
+            discardBody(exchange);
+            respond(exchange, 200, "application/json", ("{\"access_token\":\"" + USER + "\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+                    + "\"refresh_token\":\"" + USER + "\",\"user_id\":\"" + USER + "\"}").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (path.contains("/apps/files_sharing/api/v1/shares")) {
+            share(exchange);
+            return;
+        }
+        if (path.endsWith("/core/preview")) {
+            preview(exchange);
+            return;
+        }
+        String davPath;
+        if (path.startsWith(WEBDAV)) {
+            davPath = normalize(path.substring(WEBDAV.length()));
+        } else if (path.startsWith(DAV_FILES)) {
+            davPath = normalize(path.substring(DAV_FILES.length()));
+        } else {
+            respond(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+        switch (method) {
+            case "PROPFIND":
+                discardBody(exchange);
+                propfind(exchange, path.startsWith(WEBDAV) ? WEBDAV : DAV_FILES, davPath);
+                break;
+            case "REPORT":
+                discardBody(exchange);
+                report(exchange, path.startsWith(WEBDAV) ? WEBDAV : DAV_FILES, davPath);
+                break;
+            case "GET":
+                get(exchange, davPath);
+                break;
+            case "PUT":
+                put(exchange, davPath);
+                break;
+            case "MKCOL":
+                discardBody(exchange);
+                mkcol(exchange, davPath);
+                break;
+            case "MOVE":
+                move(exchange, davPath);
+                break;
+            case "DELETE":
+                nodes.keySet().removeAll(subtree(davPath));
+                syncToken.incrementAndGet();
+                respond(exchange, 204, "text/plain", new byte[0]);
+                break;
+            default:
+                respond(exchange, 501, "text/plain", new byte[0]);
+        }
+    }
+
+    private void propfind(HttpExchange exchange, String root, String davPath) throws IOException {
+        Node node = nodes.get(davPath);
+        if (node == null) {
+            respond(exchange, 404, "application/xml", new byte[0]);
+            return;
+        }
+        String depth = exchange.getRequestHeaders().getFirst("Depth");
+        StringBuilder xml = multistatusStart();
+        response(xml, root, davPath, node);
+        if (node.collection && !"0".equals(depth)) {
+            for (Map.Entry<String, Node> child : children(davPath, !"1".equals(depth))) {
+                response(xml, root, child.getKey(), child.getValue());
+            }
+        }
+        xml.append("</d:multistatus>");
+        respond(exchange, 207, "application/xml; charset=utf-8", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answers every sync-collection report with the complete tree and a new token, as Nextcloud does for an
+     * unknown token.
+     */
+    private void report(HttpExchange exchange, String root, String davPath) throws IOException {
+        StringBuilder xml = multistatusStart();
+        for (Map.Entry<String, Node> child : children(davPath, true)) {
+            response(xml, root, child.getKey(), child.getValue());
+        }
+        xml.append("<d:sync-token>").append(getUrl()).append("/sync/").append(syncToken.get()).append("</d:sync-token>");
+        xml.append("</d:multistatus>");
+        respond(exchange, 207, "application/xml; charset=utf-8", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void get(HttpExchange exchange, String davPath) throws IOException {
+        Node node = nodes.get(davPath);
+        if (node == null || node.collection) {
+            respond(exchange, node == null ? 404 : 405, "text/plain", new byte[0]);
+            return;
+        }
+        long offset = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            offset = Math.min(node.size, Long.parseLong(range.substring(6, range.length() - 1)));
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("ETag", "\"" + node.etag + "\"");
+        exchange.getResponseHeaders().set("Last-Modified", httpDate(node.modified));
+        if (offset > 0) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (node.size - 1) + "/" + node.size);
+        }
+        long length = node.size - offset;
+        try (OutputStream out = respond(exchange, offset > 0 ? 206 : 200, length == 0 ? -1 : length)) {
+            if (length > 0) {
+                writeContent(new SkippingOutputStream(out, offset), node.fileId, node.size);
+            }
+        }
+    }
+
+    private void put(HttpExchange exchange, String davPath) throws IOException {
+        Node existing = nodes.get(davPath);
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (!isCollection(parent(davPath))) {
+            discardBody(exchange);
+            respond(exchange, 409, "application/xml", new byte[0]);
+            return;
+        }
+        if ((ifMatch != null && (existing == null || !ifMatch.replace("\"", "").equals(existing.etag)))
+                || ("*".equals(ifNoneMatch) && existing != null)) {
+            discardBody(exchange);
+            respond(exchange, 412, "application/xml", new byte[0]);
+            return;
+        }
+        long size = discardBody(exchange);
+        Node node = new Node(false, size, existing != null ? existing.fileId : fileIds.incrementAndGet());
+        nodes.put(davPath, node);
+        syncToken.incrementAndGet();
+        exchange.getResponseHeaders().set("ETag", "\"" + node.etag + "\"");
+        exchange.getResponseHeaders().set("OC-ETag", "\"" + node.etag + "\"");
+        exchange.getResponseHeaders().set("OC-FileId", String.format("%08d", node.fileId) + "ocloadtest");
+        respond(exchange, existing != null ? 204 : 201, "text/plain", new byte[0]);
+    }
+
+    private void mkcol(HttpExchange exchange, String davPath) throws IOException {
+        if (nodes.containsKey(davPath)) {
+            respond(exchange, 405, "application/xml", new byte[0]);
+        } else if (!isCollection(parent(davPath))) {
+            respond(exchange, 409, "application/xml", new byte[0]);
+        } else {
+            nodes.put(davPath, new Node(true, 0, fileIds.incrementAndGet()));
+            syncToken.incrementAndGet();
+            respond(exchange, 201, "text/plain", new byte[0]);
+        }
+    }
+
+    private void move(HttpExchange exchange, String davPath) throws IOException {
+        discardBody(exchange);
+        String destination = exchange.getRequestHeaders().getFirst("Destination");
+        String target;
+        try {
+            String targetPath = new URI(destination).getPath();
+            target = normalize(targetPath.substring(targetPath.indexOf(WEBDAV) >= 0 ? targetPath.indexOf(WEBDAV) + WEBDAV.length()
+                    : targetPath.indexOf(DAV_FILES) + DAV_FILES.length()));
+        } catch (URISyntaxException | NullPointerException | StringIndexOutOfBoundsException e) {
+            respond(exchange, 400, "application/xml", new byte[0]);
+            return;
+        }
+        if (!nodes.containsKey(davPath)) {
+            respond(exchange, 404, "application/xml", new byte[0]);
+            return;
+        }
+        boolean exists = nodes.containsKey(target);
+        if (exists && "F".equals(exchange.getRequestHeaders().getFirst("Overwrite"))) {
+            respond(exchange, 412, "application/xml", new byte[0]);
+            return;
+        }
+        if (!isCollection(parent(target))) {
+            respond(exchange, 409, "application/xml", new byte[0]);
+            return;
+        }
+        nodes.keySet().removeAll(subtree(target));
+        for (String key : subtree(davPath)) {
+            Node node = nodes.remove(key);
+            if (node != null) {
+                nodes.put(target + key.substring(davPath.length()), node);
+            }
+        }
+        syncToken.incrementAndGet();
+        respond(exchange, exists ? 204 : 201, "text/plain", new byte[0]);
+    }
+
+    /**
+     * Creates a public link share, answering in the XML format of OCS the extension parses.
+     */
+    private void share(HttpExchange exchange) throws IOException {
+        String body = readText(exchange);
+        String path = "";
+        for (String parameter : body.split("&")) {
+            if (parameter.startsWith("path=")) {
+                path = URLDecoder.decode(parameter.substring(5), "UTF-8");
+            }
+        }
+        Node node = nodes.get(normalize(path));
+        String xml;
+        int status;
+        if (node == null) {
+            status = 404;
+            xml = "<?xml version=\"1.0\"?><ocs><meta><status>failure</status><statuscode>404</statuscode>"
+                    + "<message>Wrong path, file/folder doesn't exist</message></meta><data/></ocs>";
+        } else {
+            status = 200;
+            String token = Long.toString(node.fileId, 36) + Long.toString(System.nanoTime() % 1000000, 36);
+            xml = "<?xml version=\"1.0\"?><ocs><meta><status>ok</status><statuscode>200</statuscode><message>OK</message></meta>"
+                    + "<data><id>" + node.fileId + "</id><token>" + token + "</token><url>" + getUrl() + "/s/" + token + "</url></data></ocs>";
+        }
+        respond(exchange, status, "text/xml; charset=utf-8", xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void preview(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"preview-" + exchange.getRequestURI().getQuery().hashCode() + "\"");
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        try (OutputStream out = respond(exchange, 200, 4096)) {
+            writeContent(out, exchange.getRequestURI().getQuery().hashCode(), 4096);
+        }
+    }
+
+    private List<Map.Entry<String, Node>> children(String davPath, boolean recursive) {
+        List<Map.Entry<String, Node>> children = new ArrayList<>();
+        String prefix = davPath + "/";
+        for (Map.Entry<String, Node> entry : nodes.subMap(prefix, true, prefix + "\uffff", true).entrySet()) {
+            if (recursive || entry.getKey().indexOf('/', prefix.length()) < 0) {
+                children.add(entry);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @return the path and all paths below it
+     */
+    private List<String> subtree(String davPath) {
+        List<String> paths = new ArrayList<>();
+        if (nodes.containsKey(davPath)) {
+            paths.add(davPath);
+        }
+        paths.addAll(nodes.subMap(davPath + "/", true, davPath + "/\uffff", true).keySet());
+        return paths;
+    }
+
+    private StringBuilder multistatusStart() {
+        return new StringBuilder("<?xml version=\"1.0\"?><d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">");
+    }
+
+    private void response(StringBuilder xml, String root, String davPath, Node node) {
+        xml.append("<d:response><d:href>").append(encode(root + davPath + (node.collection ? "/" : ""))).append("</d:href>");
+        xml.append("<d:propstat><d:prop>");
+        xml.append("<d:getlastmodified>").append(httpDate(node.modified)).append("</d:getlastmodified>");
+        xml.append("<d:getetag>\"").append(node.etag).append("\"</d:getetag>");
+        xml.append("<oc:fileid>").append(node.fileId).append("</oc:fileid>");
+        xml.append("<oc:owner-id>").append(USER).append("</oc:owner-id>");
+        if (node.collection) {
+            xml.append("<d:resourcetype><d:collection/></d:resourcetype>");
+            long used = 0;
+            for (Map.Entry<String, Node> child : children(davPath, true)) {
+                used += child.getValue().size;
+            }
+            xml.append("<d:quota-used-bytes>").append(used).append("</d:quota-used-bytes>");
+            xml.append("<d:quota-available-bytes>").append(quota < 0 ? quota : Math.max(0, quota - used)).append("</d:quota-available-bytes>");
+        } else {
+            xml.append("<d:resourcetype/>");
+            xml.append("<d:getcontentlength>").append(node.size).append("</d:getcontentlength>");
+            xml.append("<d:getcontenttype>application/octet-stream</d:getcontenttype>");
+        }
+        xml.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+    }
+
+    private boolean isCollection(String davPath) {
+        Node node = nodes.get(davPath);
+        return node != null && node.collection;
+    }
+
+    private static String parent(String davPath) {
+        return davPath.substring(0, Math.max(0, davPath.lastIndexOf('/')));
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replaceAll("/+", "/");
+        if (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (!normalized.isEmpty() && !normalized.startsWith("/")) {
+            normalized = "/" + normalized;
+        }
+        return normalized;
+    }
+
+    private static String encode(String path) {
+        try {
+            return new URI(null, null, path, null).toASCIIString();
+        } catch (URISyntaxException e) {
+            return path;
+        }
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String readText(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        InputStream in = exchange.getRequestBody();
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drops the first bytes written, to serve a range of generated content.
+     */
+    private static class SkippingOutputStream extends FilterOutputStream {
+        private long skip;
+
+        SkippingOutputStream(OutputStream out, long skip) {
+            super(out);
+            this.skip = skip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int skipped = (int) Math.min(skip, len);
+            skip -= skipped;
+            if (len > skipped) {
+                out.write(b, off + skipped, len - skipped);
+            }
+        }
+    }
+}
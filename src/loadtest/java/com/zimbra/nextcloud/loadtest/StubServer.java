@@ -0,0 +1,226 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud.loadtest;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server standing in for a remote service during load tests, with configurable latency,
+ * bandwidth and error injection so the behaviour of the extension on a slow or failing server can be measured.
+ */
+public abstract class StubServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, getClass().getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //time in milliseconds added before every response
+    private volatile long latency;
+    //bytes per second of every response body, 0 for unlimited
+    private volatile long bandwidth;
+    //fraction of requests answered with 503, between 0 and 1
+    private volatile double errorRate;
+    //fraction of requests whose connection is closed halfway through the response body
+    private volatile double resetRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    protected StubServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/", exchange -> {
+            try {
+                requests.incrementAndGet();
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    injectedErrors.incrementAndGet();
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                handle(exchange);
+            } catch (Exception e) {
+                if (exchange.getResponseCode() == -1) {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return base URL of the server, without trailing slash
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    protected abstract void handle(HttpExchange exchange) throws IOException;
+
+    /**
+     * Sends the status and headers and returns the stream for the response body, throttled to the configured
+     * bandwidth and possibly cut off halfway.
+     *
+     * @param length length of the body, 0 for chunked and -1 for no body
+     */
+    protected OutputStream respond(HttpExchange exchange, int status, long length) throws IOException {
+        exchange.sendResponseHeaders(status, length);
+        long resetAfter = length > 0 && resetRate > 0 && ThreadLocalRandom.current().nextDouble() < resetRate ? length / 2 : -1;
+        return new FilterOutputStream(exchange.getResponseBody()) {
+            private long written;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (resetAfter >= 0 && written + len > resetAfter) {
+                    injectedErrors.incrementAndGet();
+                    throw new IOException("Injected connection reset");
+                }
+                throttle(len);
+                out.write(b, off, len);
+                written += len;
+                bytesSent.addAndGet(len);
+            }
+        };
+    }
+
+    /**
+     * Sends a complete response body.
+     */
+    protected void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        try (OutputStream out = respond(exchange, status, body.length == 0 ? -1 : body.length)) {
+            if (body.length > 0) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Reads and discards the request body, throttled to the configured bandwidth. Content is not kept so the heap
+     * of the stub does not distort the heap measured for the extension.
+     *
+     * @return number of bytes read
+     */
+    protected long discardBody(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        int read;
+        while ((read = exchange.getRequestBody().read(buffer)) != -1) {
+            throttle(read);
+            length += read;
+            bytesReceived.addAndGet(read);
+        }
+        return length;
+    }
+
+    private void throttle(int bytes) throws IOException {
+        long limit = bandwidth;
+        if (limit > 0) {
+            try {
+                Thread.sleep(bytes * 1000L / limit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the same pseudo random content for the same seed, so downloads can be compared with uploads.
+     */
+    protected static void writeContent(OutputStream out, long seed, long size) throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(1, size))];
+        for (long remaining = size; remaining > 0; ) {
+            random.nextBytes(buffer);
+            int length = (int) Math.min(buffer.length, remaining);
+            out.write(buffer, 0, length);
+            remaining -= length;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+
+Copyright (C) 2016-2024  Barry de Graaff
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see http://www.gnu.org/licenses/.
+
+*/
+
+
+package com.zimbra.nextcloud.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Stand-in for the content servlet of Zimbra (<code>/service/home/~/?id=..</code>) the extension downloads emails
+ * and attachments from. The size of the content is taken from the <code>size</code> query parameter, emails
+ * without one get the default email size. Requests without a <code>ZM_AUTH_TOKEN</code> cookie are refused.
+ */
+public class StubZimbra extends StubServer {
+    private volatile long mailSize = 64 * 1024;
+
+    public StubZimbra(int port) throws IOException {
+        super(port);
+    }
+
+    public void setMailSize(long mailSize) {
+        this.mailSize = mailSize;
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie == null || !cookie.contains("ZM_AUTH_TOKEN=")) {
+            respond(exchange, 401, "text/plain", new byte[0]);
+            return;
+        }
+        if (!exchange.getRequestURI().getPath().startsWith("/service/home/")) {
+            respond(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+        String query = exchange.getRequestURI().getQuery();
+        String id = parameter(query, "id");
+        String part = parameter(query, "part");
+        String size = parameter(query, "size");
+        long length = size != null ? Long.parseLong(size) : mailSize;
+        long seed = (id != null ? id.hashCode() : 0) * 31L + (part != null ? part.hashCode() : 0);
+
+        exchange.getResponseHeaders().set("Content-Type", part == null ? "message/rfc822" : "application/octet-stream");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + (part == null ? id + ".eml" : id + "-" + part + ".bin") + "\"");
+        try (OutputStream out = respond(exchange, 200, length == 0 ? -1 : length)) {
+            if (length > 0) {
+                writeContent(out, seed, length);
+            }
+        }
+    }
+
+    private static String parameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+}